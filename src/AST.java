@@ -26,6 +26,8 @@ abstract class Expr {
 
         R visitArrayExpr(Array expr);
 
+        R visitMapExpr(Map expr);
+
         R visitIndexExpr(Index expr);
 
         R visitThisExpr(This expr);
@@ -217,6 +219,21 @@ abstract class Expr {
         }
     }
 
+    static class Map extends Expr {
+        final List<Expr> keys;
+        final List<Expr> values;
+
+        Map(List<Expr> keys, List<Expr> values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitMapExpr(this);
+        }
+    }
+
     static class Index extends Expr {
         final Expr object;
         final Expr index;
@@ -285,7 +302,13 @@ abstract class Stmt {
 
         R visitForStmt(For stmt);
 
+        R visitForInStmt(ForIn stmt);
+
         R visitInterfaceStmt(Interface stmt);
+
+        R visitBreakStmt(Break stmt);
+
+        R visitContinueStmt(Continue stmt);
     }
 
     static class For extends Stmt {
@@ -307,6 +330,23 @@ abstract class Stmt {
         }
     }
 
+    static class ForIn extends Stmt {
+        final Token name;
+        final Expr iterable;
+        final Stmt body;
+
+        ForIn(Token name, Expr iterable, Stmt body) {
+            this.name = name;
+            this.iterable = iterable;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForInStmt(this);
+        }
+    }
+
     static class Interface extends Stmt {
         final Token name;
         final List<Token> methods;
@@ -462,4 +502,30 @@ abstract class Stmt {
             return visitor.visitWhileStmt(this);
         }
     }
-}
+
+    static class Break extends Stmt {
+        final Token keyword;
+
+        Break(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBreakStmt(this);
+        }
+    }
+
+    static class Continue extends Stmt {
+        final Token keyword;
+
+        Continue(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitContinueStmt(this);
+        }
+    }
+}
\ No newline at end of file
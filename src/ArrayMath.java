@@ -0,0 +1,105 @@
+// Kernels behind the numeric array builtins. Each takes the first n entries
+// of unboxed arrays and is written as a plain counted loop over double[]:
+// the element-wise ones are vectorized by the JIT as they stand, and the
+// reductions keep four independent sums so the adds can overlap.
+final class ArrayMath {
+    private ArrayMath() {
+    }
+
+    static double sum(double[] a, int n) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i];
+            s1 += a[i + 1];
+            s2 += a[i + 2];
+            s3 += a[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static double dot(double[] a, double[] b, int n) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static double min(double[] a, int n) {
+        double min = a[0];
+        for (int i = 1; i < n; i++) {
+            min = Math.min(min, a[i]);
+        }
+        return min;
+    }
+
+    static double max(double[] a, int n) {
+        double max = a[0];
+        for (int i = 1; i < n; i++) {
+            max = Math.max(max, a[i]);
+        }
+        return max;
+    }
+
+    // Population variance, from the squared distances to the mean.
+    static double variance(double[] a, int n) {
+        double mean = sum(a, n) / n;
+        double s0 = 0, s1 = 0;
+        int i = 0;
+        for (; i + 1 < n; i += 2) {
+            double d0 = a[i] - mean;
+            double d1 = a[i + 1] - mean;
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+        }
+        for (; i < n; i++) {
+            double d = a[i] - mean;
+            s0 += d * d;
+        }
+        return (s0 + s1) / n;
+    }
+
+    static double[] scale(double[] a, double k, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = a[i] * k;
+        }
+        return result;
+    }
+
+    // k * x + y, element by element.
+    static double[] axpy(double k, double[] x, double[] y, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = k * x[i] + y[i];
+        }
+        return result;
+    }
+
+    static double[] add(double[] a, double[] b, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = a[i] + b[i];
+        }
+        return result;
+    }
+
+    static double[] mul(double[] a, double[] b, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = a[i] * b[i];
+        }
+        return result;
+    }
+}
@@ -1,51 +1,67 @@
 import java.util.*;
 
 enum OpCode {
-    CONSTANT,
-    NIL,
-    TRUE,
-    FALSE,
-    POP,
-    GET_GLOBAL,
-    DEFINE_GLOBAL,
-    SET_GLOBAL,
-    GET_PROPERTY,
-    SET_PROPERTY,
-    EQUAL,
-    GREATER,
-    LESS,
-    ADD,
-    SUBTRACT,
-    MULTIPLY,
-    DIVIDE,
-    MODULO,
-    NOT,
-    NEGATE,
-    PRINT,
-    JUMP,
-    JUMP_IF_FALSE,
-    LOOP,
-    CALL,
-    RETURN,
-    ARRAY,
-    INDEX_GET,
-    INDEX_SET,
-    CLASS,
-    INHERIT,
-    METHOD,
-    INVOKE,
-    SUPER_INVOKE,
-    GET_SUPER,
-    CLOSURE,
-    GET_UPVALUE,
-    SET_UPVALUE,
-    CLOSE_UPVALUE
+    CONSTANT(1),
+    NIL(0),
+    TRUE(0),
+    FALSE(0),
+    POP(0),
+    GET_GLOBAL(1),
+    DEFINE_GLOBAL(1),
+    SET_GLOBAL(1),
+    GET_PROPERTY(1),
+    SET_PROPERTY(1),
+    EQUAL(0),
+    GREATER(0),
+    LESS(0),
+    ADD(0),
+    SUBTRACT(0),
+    MULTIPLY(0),
+    DIVIDE(0),
+    MODULO(0),
+    NOT(0),
+    NEGATE(0),
+    PRINT(0),
+    JUMP(2),
+    JUMP_IF_FALSE(2),
+    LOOP(2),
+    CALL(1),
+    RETURN(0),
+    ARRAY(1),
+    INDEX_GET(0),
+    INDEX_SET(0),
+    CLASS(1),
+    INHERIT(0),
+    METHOD(1),
+    INVOKE(2),
+    SUPER_INVOKE(2),
+    GET_SUPER(1),
+    CLOSURE(1),
+    GET_UPVALUE(1),
+    SET_UPVALUE(1),
+    CLOSE_UPVALUE(0),
+    ADD_NUMBER(0),
+    ADD_STRING(0),
+    INDEX_GET_ARRAY(0),
+    LOOP_HOT(2),
+    MAP(1),
+    ITERATE(0),
+    FOR_NEXT(2);
+
+    final int operandBytes;
+
+    OpCode(int operandBytes) {
+        this.operandBytes = operandBytes;
+    }
 }
 
 class Chunk {
     private final List<Byte> code = new ArrayList<>();
     private final List<Integer> lines = new ArrayList<>();
     private final List<Object> constants = new ArrayList<>();
+    // The program's interfaces, numbered densely as they are added so that
+    // classes can record conformance in a bitset indexed by id.
+    private final List<SerializableInterface> interfaces = new ArrayList<>();
 
     public void write(byte data, int line) {
         code.add(data);
@@ -57,6 +73,10 @@ class Chunk {
     }
 
     public int addConstant(Object value) {
+        if (value instanceof SerializableInterface) {
+            ((SerializableInterface) value).setId(interfaces.size());
+            interfaces.add((SerializableInterface) value);
+        }
         constants.add(value);
         return constants.size() - 1;
     }
@@ -88,4 +108,8 @@ class Chunk {
     public List<Object> getConstants() {
         return new ArrayList<>(constants);
     }
+
+    List<SerializableInterface> getInterfaces() {
+        return Collections.unmodifiableList(interfaces);
+    }
 }
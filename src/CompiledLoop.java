@@ -0,0 +1,117 @@
+import java.util.*;
+
+// A hot top-level loop, pre-decoded so the VM can enter it on-stack at its
+// back-edge. Operands are unpacked once and jump offsets are resolved to
+// instruction indices; jumps that leave the loop hand the exit offset back to
+// the interpreter. The operand stack and globals are the VM's own, so the
+// live state carries over without copying.
+class CompiledLoop {
+    private final OpCode[] ops;
+    private final int[] operands;
+    private final int[] offsets;
+    private final int end;
+
+    private CompiledLoop(OpCode[] ops, int[] operands, int[] offsets, int end) {
+        this.ops = ops;
+        this.operands = operands;
+        this.offsets = offsets;
+        this.end = end;
+    }
+
+    static CompiledLoop compile(Chunk chunk, int start, int end) {
+        int[] indexAt = new int[end - start];
+        Arrays.fill(indexAt, -1);
+
+        int count = 0;
+        for (int offset = start; offset < end; offset += 1 + VirtualMachine.OPCODES[chunk.get(offset)].operandBytes) {
+            indexAt[offset - start] = count++;
+        }
+
+        OpCode[] ops = new OpCode[count];
+        int[] operands = new int[count];
+        int[] offsets = new int[count];
+
+        int offset = start;
+        for (int i = 0; i < count; i++) {
+            OpCode op = VirtualMachine.OPCODES[chunk.get(offset)];
+            ops[i] = op;
+            offsets[i] = offset;
+
+            switch (op) {
+                case JUMP:
+                case JUMP_IF_FALSE:
+                case FOR_NEXT:
+                    operands[i] = target(indexAt, start, end, offset + 3 + readShort(chunk, offset + 1));
+                    break;
+                case LOOP:
+                case LOOP_HOT:
+                    operands[i] = target(indexAt, start, end, offset + 3 - readShort(chunk, offset + 1));
+                    break;
+                default:
+                    if (op.operandBytes == 1) {
+                        operands[i] = chunk.getUnsigned(offset + 1);
+                    }
+                    break;
+            }
+
+            offset += 1 + op.operandBytes;
+        }
+
+        return new CompiledLoop(ops, operands, offsets, end);
+    }
+
+    private static int readShort(Chunk chunk, int offset) {
+        return (chunk.getUnsigned(offset) << 8) | chunk.getUnsigned(offset + 1);
+    }
+
+    // Jumps inside the loop become instruction indices; jumps out of it are
+    // encoded as -1 - exitOffset.
+    private static int target(int[] indexAt, int start, int end, int offset) {
+        if (offset >= start && offset < end && indexAt[offset - start] >= 0) {
+            return indexAt[offset - start];
+        }
+        return -1 - offset;
+    }
+
+    // Runs until control leaves the loop. Returns the bytecode offset at which
+    // the interpreter should resume, or -1 if the script executed RETURN.
+    int execute(VirtualMachine vm) {
+        Profile profile = vm.getProfile();
+        int pc = 0;
+        while (pc < ops.length) {
+            OpCode op = ops[pc];
+            if (profile != null) {
+                profile.record(op, offsets[pc], vm);
+            }
+
+            switch (op) {
+                case JUMP:
+                case LOOP:
+                case LOOP_HOT:
+                    pc = operands[pc];
+                    break;
+
+                case JUMP_IF_FALSE:
+                    pc = VirtualMachine.isTruthy(vm.peek()) ? pc + 1 : operands[pc];
+                    break;
+
+                case FOR_NEXT:
+                    pc = vm.forNext() ? pc + 1 : operands[pc];
+                    break;
+
+                case RETURN:
+                    return -1;
+
+                default:
+                    vm.execute(op, operands[pc]);
+                    pc++;
+                    break;
+            }
+
+            if (pc < 0) {
+                return -1 - pc;
+            }
+        }
+        return end;
+    }
+}
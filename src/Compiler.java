@@ -3,11 +3,26 @@ import java.util.*;
 class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Chunk chunk = new Chunk();
     private Map<String, List<String>> interfaces = new HashMap<>();
+    private final Profile profile;
+    private final Deque<LoopContext> loops = new ArrayDeque<>();
+
+    // Forward jumps out of the innermost loop, patched once its exit and
+    // continue points are known.
+    private static class LoopContext {
+        final List<Integer> breakJumps = new ArrayList<>();
+        final List<Integer> continueJumps = new ArrayList<>();
+    }
 
     public Compiler() {
+        this.profile = null;
     }
 
     public Compiler(VirtualMachine vm) {
+        this.profile = null;
+    }
+
+    public Compiler(Profile profile) {
+        this.profile = profile;
     }
 
     public Chunk compile(List<Stmt> statements) {
@@ -45,7 +60,13 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         switch (expr.operator.type) {
             case PLUS:
-                emitByte(OpCode.ADD);
+                if (profile != null && profile.isNumberAdd(chunk.size())) {
+                    emitByte(OpCode.ADD_NUMBER);
+                } else if (profile != null && profile.isStringAdd(chunk.size())) {
+                    emitByte(OpCode.ADD_STRING);
+                } else {
+                    emitByte(OpCode.ADD);
+                }
                 break;
             case MINUS:
                 emitByte(OpCode.SUBTRACT);
@@ -167,11 +188,28 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitMapExpr(Expr.Map expr) {
+        if (expr.keys.size() > 255) {
+            throw new RuntimeException("Can't have more than 255 entries in a map literal.");
+        }
+        for (int i = 0; i < expr.keys.size(); i++) {
+            compile(expr.keys.get(i));
+            compile(expr.values.get(i));
+        }
+        emitBytes(OpCode.MAP, (byte) expr.keys.size());
+        return null;
+    }
+
     @Override
     public Void visitIndexExpr(Expr.Index expr) {
         compile(expr.object);
         compile(expr.index);
-        emitByte(OpCode.INDEX_GET);
+        if (profile != null && profile.isArrayIndex(chunk.size())) {
+            emitByte(OpCode.INDEX_GET_ARRAY);
+        } else {
+            emitByte(OpCode.INDEX_GET);
+        }
         return null;
     }
 
@@ -275,11 +313,34 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
         emitByte(OpCode.POP);
+        LoopContext loop = new LoopContext();
+        loops.push(loop);
         compile(stmt.body);
+        loops.pop();
+        patchJumps(loop.continueJumps);
         emitLoop(loopStart);
 
         patchJump(exitJump);
         emitByte(OpCode.POP);
+        patchJumps(loop.breakJumps);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loops.isEmpty()) {
+            throw new RuntimeException("Can't use 'break' outside of a loop.");
+        }
+        loops.peek().breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        if (loops.isEmpty()) {
+            throw new RuntimeException("Can't use 'continue' outside of a loop.");
+        }
+        loops.peek().continueJumps.add(emitJump(OpCode.JUMP));
         return null;
     }
 
@@ -444,6 +505,10 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return SerializableStatement.whileStmt(
                     convertExpression(whileStmt.condition),
                     convertStatement(whileStmt.body));
+        } else if (stmt instanceof Stmt.Break) {
+            return SerializableStatement.breakStmt();
+        } else if (stmt instanceof Stmt.Continue) {
+            return SerializableStatement.continueStmt();
         } else if (stmt instanceof Stmt.For) {
             Stmt.For forStmt = (Stmt.For) stmt;
             SerializableStatement initializer = forStmt.initializer != null ? convertStatement(forStmt.initializer)
@@ -452,6 +517,12 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             SerializableExpression increment = forStmt.increment != null ? convertExpression(forStmt.increment) : null;
             SerializableStatement body = convertStatement(forStmt.body);
             return SerializableStatement.forStmt(initializer, condition, increment, body);
+        } else if (stmt instanceof Stmt.ForIn) {
+            Stmt.ForIn forIn = (Stmt.ForIn) stmt;
+            return SerializableStatement.forIn(
+                    forIn.name.lexeme,
+                    convertExpression(forIn.iterable),
+                    convertStatement(forIn.body));
         }
 
         return null;
@@ -513,6 +584,14 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 elements.add(convertExpression(element));
             }
             return SerializableExpression.array(elements);
+        } else if (expr instanceof Expr.Map) {
+            Expr.Map mapExpr = (Expr.Map) expr;
+            List<SerializableExpression> entries = new ArrayList<>();
+            for (int i = 0; i < mapExpr.keys.size(); i++) {
+                entries.add(convertExpression(mapExpr.keys.get(i)));
+                entries.add(convertExpression(mapExpr.values.get(i)));
+            }
+            return SerializableExpression.map(entries);
         } else if (expr instanceof Expr.Index) {
             Expr.Index indexExpr = (Expr.Index) expr;
             return SerializableExpression.index(
@@ -603,8 +682,18 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         chunk.set(offset + 1, (byte) (jump & 0xff));
     }
 
+    private void patchJumps(List<Integer> offsets) {
+        for (int offset : offsets) {
+            patchJump(offset);
+        }
+    }
+
     private void emitLoop(int loopStart) {
-        emitByte(OpCode.LOOP);
+        if (profile != null && profile.isHotLoop(chunk.size())) {
+            emitByte(OpCode.LOOP_HOT);
+        } else {
+            emitByte(OpCode.LOOP);
+        }
 
         int offset = chunk.size() - loopStart + 2;
         if (offset > 0xffff)
@@ -632,7 +721,11 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
         emitByte(OpCode.POP);
 
+        LoopContext loop = new LoopContext();
+        loops.push(loop);
         compile(stmt.body);
+        loops.pop();
+        patchJumps(loop.continueJumps);
 
         if (stmt.increment != null) {
             compile(stmt.increment);
@@ -643,7 +736,34 @@ class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         patchJump(exitJump);
         emitByte(OpCode.POP);
+        patchJumps(loop.breakJumps);
+
+        return null;
+    }
+
+    // The cursor stays on the stack for the whole loop; FOR_NEXT pushes each
+    // value and jumps out when there are none left.
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        compile(stmt.iterable);
+        emitByte(OpCode.ITERATE);
+
+        int loopStart = chunk.size();
+        int exitJump = emitJump(OpCode.FOR_NEXT);
+        emitBytes(OpCode.DEFINE_GLOBAL, (byte) makeConstant(stmt.name.lexeme));
+
+        LoopContext loop = new LoopContext();
+        loops.push(loop);
+        compile(stmt.body);
+        loops.pop();
+        patchJumps(loop.continueJumps);
+
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        patchJumps(loop.breakJumps);
+        emitByte(OpCode.POP);
 
         return null;
     }
-}
\ No newline at end of file
+}
@@ -2,53 +2,97 @@ import java.util.*;
 
 class Environment {
   final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
+  // Function activations bind parameters into a fixed slot frame; anything
+  // declared later in the body spills into the lazily created map.
+  private final String[] slotNames;
+  private final Object[] slots;
+  private Map<String, Object> values;
 
   Environment() {
-    enclosing = null;
+    this(null, new HashMap<>());
   }
 
   Environment(Environment enclosing) {
+    this(enclosing, new HashMap<>());
+  }
+
+  // A root scope backed directly by an existing map, such as the VM globals.
+  Environment(Map<String, Object> values) {
+    this(null, values);
+  }
+
+  Environment(Environment enclosing, String[] slotNames) {
     this.enclosing = enclosing;
+    this.slotNames = slotNames;
+    this.slots = new Object[slotNames.length];
+    this.values = null;
   }
 
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
-    }
+  private Environment(Environment enclosing, Map<String, Object> values) {
+    this.enclosing = enclosing;
+    this.slotNames = null;
+    this.slots = null;
+    this.values = values;
+  }
 
-    if (enclosing != null)
-      return enclosing.get(name);
+  void setSlot(int index, Object value) {
+    slots[index] = value;
+  }
 
-    throw new RuntimeException("Undefined variable '" + name.lexeme + "'.");
+  private int slotOf(String name) {
+    if (slotNames != null) {
+      for (int i = 0; i < slotNames.length; i++) {
+        if (slotNames[i].equals(name)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  Object get(Token name) {
+    return get(name.lexeme);
   }
 
   Object get(String name) {
-    if (values.containsKey(name)) {
-      return values.get(name);
+    for (Environment environment = this; environment != null; environment = environment.enclosing) {
+      int slot = environment.slotOf(name);
+      if (slot >= 0) {
+        return environment.slots[slot];
+      }
+      if (environment.values != null && environment.values.containsKey(name)) {
+        return environment.values.get(name);
+      }
     }
 
-    if (enclosing != null)
-      return enclosing.get(name);
-
     throw new RuntimeException("Undefined variable '" + name + "'.");
   }
 
   void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
-    }
-
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
+    for (Environment environment = this; environment != null; environment = environment.enclosing) {
+      int slot = environment.slotOf(name.lexeme);
+      if (slot >= 0) {
+        environment.slots[slot] = value;
+        return;
+      }
+      if (environment.values != null && environment.values.containsKey(name.lexeme)) {
+        environment.values.put(name.lexeme, value);
+        return;
+      }
     }
 
     throw new RuntimeException("Undefined variable '" + name.lexeme + "'.");
   }
 
   void define(String name, Object value) {
+    int slot = slotOf(name);
+    if (slot >= 0) {
+      slots[slot] = value;
+      return;
+    }
+    if (values == null) {
+      values = new HashMap<>();
+    }
     values.put(name, value);
   }
 
@@ -61,10 +105,15 @@ class Environment {
   }
 
   Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+    Environment environment = ancestor(distance);
+    int slot = environment.slotOf(name);
+    if (slot >= 0) {
+      return environment.slots[slot];
+    }
+    return environment.values != null ? environment.values.get(name) : null;
   }
 
   void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+    ancestor(distance).define(name.lexeme, value);
   }
 }
@@ -0,0 +1,433 @@
+import java.util.*;
+
+// A function body lowered to flat stack instructions for the VM's frame
+// loop. Jump targets are resolved to instruction indices and every operator
+// gets its own op, so running a body is one loop over these arrays rather
+// than a recursive walk of the statement tree. Calls between Mabel functions
+// push a frame on the VM's call stack instead of nesting on the Java stack.
+class FunctionCode {
+    enum Op {
+        CONST, GET_VAR, SET_VAR, THIS, SUPER,
+        GET_PROPERTY, SET_PROPERTY, INDEX, INDEX_SET, ARRAY, MAP, CALL,
+        NEGATE, NOT, ADD, SUBTRACT, MULTIPLY, DIVIDE, MODULO,
+        LESS_EQUAL, GREATER_EQUAL, LESS, GREATER, EQUAL, NOT_EQUAL, AND, OR,
+        POP, PRINT, DEFINE, SET_RESULT, CLEAR_RESULT,
+        JUMP, JUMP_IF_FALSE, ITERATE, FOR_NEXT,
+        RETURN, RETURN_RESULT, FAIL
+    }
+
+    final Op[] ops;
+    final int[] operands;
+    // Names, constants and error messages, by instruction.
+    final Object[] refs;
+    // Deepest the operand stack gets, so a frame can size it up front.
+    final int maxStack;
+    // The shape and slot each property instruction last resolved its name to.
+    final PropertyCache[] caches;
+
+    private FunctionCode(Op[] ops, int[] operands, Object[] refs, int maxStack) {
+        this.ops = ops;
+        this.operands = operands;
+        this.refs = refs;
+        this.maxStack = maxStack;
+        this.caches = new PropertyCache[ops.length];
+    }
+
+    // Immutable, so threads sharing the code can replace it without locking;
+    // a lost update only costs another lookup.
+    static final class PropertyCache {
+        final Shape shape;
+        final int slot;
+
+        PropertyCache(Shape shape, int slot) {
+            this.shape = shape;
+            this.slot = slot;
+        }
+    }
+
+    // A body's value is that of its last statement unless it returns, so
+    // top-level statements record their value in the frame's result.
+    static FunctionCode compile(List<SerializableStatement> body) {
+        Builder builder = new Builder();
+        for (SerializableStatement stmt : body) {
+            builder.statement(stmt, true);
+        }
+        builder.emit(Op.RETURN_RESULT, 0, null);
+        return builder.build();
+    }
+
+    private static final class Loop {
+        final List<Integer> breaks = new ArrayList<>();
+        final List<Integer> continues = new ArrayList<>();
+    }
+
+    private static final class Builder {
+        private final List<Op> ops = new ArrayList<>();
+        private final List<Integer> operands = new ArrayList<>();
+        private final List<Object> refs = new ArrayList<>();
+        private final Deque<Loop> loops = new ArrayDeque<>();
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        int emit(Op op, int operand, Object ref) {
+            ops.add(op);
+            operands.add(operand);
+            refs.add(ref);
+            depth += stackEffect(op, operand);
+            maxDepth = Math.max(maxDepth, depth);
+            return ops.size() - 1;
+        }
+
+        int here() {
+            return ops.size();
+        }
+
+        void patch(int at, int target) {
+            operands.set(at, target);
+        }
+
+        void patchAll(List<Integer> jumps, int target) {
+            for (int jump : jumps) {
+                patch(jump, target);
+            }
+        }
+
+        FunctionCode build() {
+            int[] operandArray = new int[operands.size()];
+            for (int i = 0; i < operandArray.length; i++) {
+                operandArray[i] = operands.get(i);
+            }
+            return new FunctionCode(ops.toArray(new Op[0]), operandArray, refs.toArray(), maxDepth);
+        }
+
+        // keep: the statement's value becomes the frame result.
+        void statement(SerializableStatement stmt, boolean keep) {
+            if (stmt == null) {
+                return;
+            }
+
+            switch (stmt.type) {
+                case "print":
+                    expression(stmt.expression);
+                    emit(Op.PRINT, 0, null);
+                    break;
+
+                case "var":
+                    if (stmt.expression != null) {
+                        expression(stmt.expression);
+                    } else {
+                        emit(Op.CONST, 0, null);
+                    }
+                    emit(Op.DEFINE, 0, stmt.name);
+                    break;
+
+                case "expression":
+                    expression(stmt.expression);
+                    emit(keep ? Op.SET_RESULT : Op.POP, 0, null);
+                    return;
+
+                case "return":
+                    if (stmt.expression != null) {
+                        expression(stmt.expression);
+                    } else {
+                        emit(Op.CONST, 0, null);
+                    }
+                    emit(Op.RETURN, 0, null);
+                    return;
+
+                case "break":
+                    if (!loops.isEmpty()) {
+                        loops.peek().breaks.add(emit(Op.JUMP, -1, null));
+                    }
+                    return;
+
+                case "continue":
+                    if (!loops.isEmpty()) {
+                        loops.peek().continues.add(emit(Op.JUMP, -1, null));
+                    }
+                    return;
+
+                case "if": {
+                    expression(stmt.condition);
+                    int elseJump = emit(Op.JUMP_IF_FALSE, -1, null);
+                    statement(stmt.thenBranch, keep);
+                    if (stmt.elseBranch == null && !keep) {
+                        patch(elseJump, here());
+                        return;
+                    }
+                    int endJump = emit(Op.JUMP, -1, null);
+                    patch(elseJump, here());
+                    if (stmt.elseBranch != null) {
+                        statement(stmt.elseBranch, keep);
+                    } else {
+                        emit(Op.CLEAR_RESULT, 0, null);
+                    }
+                    patch(endJump, here());
+                    return;
+                }
+
+                case "while": {
+                    Loop loop = new Loop();
+                    int top = here();
+                    expression(stmt.condition);
+                    loop.breaks.add(emit(Op.JUMP_IF_FALSE, -1, null));
+                    loopBody(loop, stmt.body);
+                    patchAll(loop.continues, top);
+                    emit(Op.JUMP, top, null);
+                    patchAll(loop.breaks, here());
+                    break;
+                }
+
+                case "for": {
+                    statement(stmt.initializer, false);
+                    Loop loop = new Loop();
+                    int top = here();
+                    if (stmt.condition != null) {
+                        expression(stmt.condition);
+                        loop.breaks.add(emit(Op.JUMP_IF_FALSE, -1, null));
+                    }
+                    loopBody(loop, stmt.body);
+                    patchAll(loop.continues, here());
+                    if (stmt.increment != null) {
+                        expression(stmt.increment);
+                        emit(Op.POP, 0, null);
+                    }
+                    emit(Op.JUMP, top, null);
+                    patchAll(loop.breaks, here());
+                    break;
+                }
+
+                case "forIn": {
+                    // The cursor stays on the operand stack while the body runs.
+                    expression(stmt.expression);
+                    emit(Op.ITERATE, 0, null);
+                    Loop loop = new Loop();
+                    int top = here();
+                    loop.breaks.add(emit(Op.FOR_NEXT, -1, stmt.name));
+                    loopBody(loop, stmt.body);
+                    patchAll(loop.continues, top);
+                    emit(Op.JUMP, top, null);
+                    patchAll(loop.breaks, here());
+                    emit(Op.POP, 0, null);
+                    break;
+                }
+
+                case "block":
+                    if (stmt.statements == null || stmt.statements.isEmpty()) {
+                        break;
+                    }
+                    for (SerializableStatement inner : stmt.statements) {
+                        statement(inner, keep);
+                    }
+                    return;
+
+                default:
+                    break;
+            }
+
+            if (keep) {
+                emit(Op.CLEAR_RESULT, 0, null);
+            }
+        }
+
+        private void loopBody(Loop loop, SerializableStatement body) {
+            loops.push(loop);
+            statement(body, false);
+            loops.pop();
+        }
+
+        void expression(SerializableExpression expr) {
+            switch (expr.type) {
+                case "literal":
+                    emit(Op.CONST, 0, expr.value);
+                    break;
+
+                case "variable":
+                    emit(Op.GET_VAR, 0, expr.name);
+                    break;
+
+                case "assign":
+                    expression(expr.right);
+                    emit(Op.SET_VAR, 0, expr.name);
+                    break;
+
+                case "this":
+                    emit(Op.THIS, 0, null);
+                    break;
+
+                case "super":
+                    emit(Op.SUPER, 0, expr.name);
+                    break;
+
+                case "superMethodCall":
+                    emit(Op.SUPER, 0, expr.name);
+                    arguments(expr.arguments);
+                    break;
+
+                case "call":
+                    expression(expr.callee);
+                    arguments(expr.arguments);
+                    break;
+
+                case "get":
+                    expression(expr.object);
+                    emit(Op.GET_PROPERTY, 0, expr.name);
+                    break;
+
+                case "set":
+                    expression(expr.object);
+                    expression(expr.right);
+                    emit(Op.SET_PROPERTY, 0, expr.name);
+                    break;
+
+                case "index":
+                    expression(expr.object);
+                    expression(expr.right);
+                    emit(Op.INDEX, 0, null);
+                    break;
+
+                case "indexSet":
+                    expression(expr.object);
+                    expression(expr.right);
+                    expression(expr.indexSetValue);
+                    emit(Op.INDEX_SET, 0, null);
+                    break;
+
+                case "array": {
+                    int count = expr.elements == null ? 0 : expr.elements.size();
+                    for (int i = 0; i < count; i++) {
+                        expression(expr.elements.get(i));
+                    }
+                    emit(Op.ARRAY, count, null);
+                    break;
+                }
+
+                case "map":
+                    for (SerializableExpression entry : expr.elements) {
+                        expression(entry);
+                    }
+                    emit(Op.MAP, expr.elements.size() / 2, null);
+                    break;
+
+                case "unary":
+                    expression(expr.right);
+                    switch (expr.operator) {
+                        case "-":
+                            emit(Op.NEGATE, 0, null);
+                            break;
+                        case "!":
+                        case "not":
+                            emit(Op.NOT, 0, null);
+                            break;
+                        default:
+                            emit(Op.FAIL, 0, "Unknown unary operator: " + expr.operator);
+                            break;
+                    }
+                    break;
+
+                case "binary": {
+                    // Both operands are evaluated, and logical operators do
+                    // not short-circuit.
+                    expression(expr.left);
+                    expression(expr.right);
+                    Op op = binaryOp(expr.operator);
+                    if (op != null) {
+                        emit(op, 0, null);
+                    } else {
+                        emit(Op.POP, 0, null);
+                        emit(Op.POP, 0, null);
+                        emit(Op.CONST, 0, null);
+                    }
+                    break;
+                }
+
+                default:
+                    emit(Op.CONST, 0, null);
+                    break;
+            }
+        }
+
+        private void arguments(List<SerializableExpression> arguments) {
+            int count = arguments == null ? 0 : arguments.size();
+            for (int i = 0; i < count; i++) {
+                expression(arguments.get(i));
+            }
+            emit(Op.CALL, count, null);
+        }
+
+        private static Op binaryOp(String operator) {
+            switch (operator) {
+                case "+":
+                    return Op.ADD;
+                case "-":
+                    return Op.SUBTRACT;
+                case "*":
+                    return Op.MULTIPLY;
+                case "/":
+                    return Op.DIVIDE;
+                case "%":
+                    return Op.MODULO;
+                case "<=":
+                    return Op.LESS_EQUAL;
+                case ">=":
+                    return Op.GREATER_EQUAL;
+                case "<":
+                    return Op.LESS;
+                case ">":
+                    return Op.GREATER;
+                case "==":
+                    return Op.EQUAL;
+                case "!=":
+                    return Op.NOT_EQUAL;
+                case "and":
+                    return Op.AND;
+                case "or":
+                    return Op.OR;
+                default:
+                    return null;
+            }
+        }
+
+        private static int stackEffect(Op op, int operand) {
+            switch (op) {
+                case CONST:
+                case GET_VAR:
+                case THIS:
+                case SUPER:
+                    return 1;
+                case SET_PROPERTY:
+                case INDEX:
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                case MODULO:
+                case LESS_EQUAL:
+                case GREATER_EQUAL:
+                case LESS:
+                case GREATER:
+                case EQUAL:
+                case NOT_EQUAL:
+                case AND:
+                case OR:
+                case POP:
+                case PRINT:
+                case DEFINE:
+                case SET_RESULT:
+                case JUMP_IF_FALSE:
+                case RETURN:
+                    return -1;
+                case INDEX_SET:
+                    return -2;
+                case ARRAY:
+                    return 1 - operand;
+                case MAP:
+                    return 1 - 2 * operand;
+                case CALL:
+                    return -operand;
+                default:
+                    return 0;
+            }
+        }
+    }
+}
@@ -16,8 +16,11 @@ class Lexer {
         keywords.put("else", TokenType.ELSE);
         keywords.put("while", TokenType.WHILE);
         keywords.put("for", TokenType.FOR);
+        keywords.put("in", TokenType.IN);
         keywords.put("function", TokenType.FUNCTION);
         keywords.put("return", TokenType.RETURN);
+        keywords.put("break", TokenType.BREAK);
+        keywords.put("continue", TokenType.CONTINUE);
         keywords.put("true", TokenType.TRUE);
         keywords.put("false", TokenType.FALSE);
         keywords.put("and", TokenType.AND);
@@ -0,0 +1,468 @@
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The array value. Storage follows what the array holds: nothing is
+// allocated while it is empty, an all-number array keeps its elements
+// unboxed in a double[], and the first non-number moves it to an Object[]
+// for good. Either way the backing array is a circular buffer starting at
+// head, so shift and unshift are as cheap as pop and push. Copies and
+// slices share their source's backing array as a window onto it, and
+// whichever side writes first takes a private copy; the last one left
+// writes in place.
+class MabelArray extends AbstractList<Object> implements RandomAccess, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final int MIN_CAPACITY = 10;
+
+  // At most one of these is in use; both are null while the array is empty.
+  private double[] numbers;
+  private Object[] objects;
+  private int head;
+  private int size;
+  // Counts the arrays using the backing array once it has more than one.
+  // An array leaves the count when it copies out, so the last user left
+  // writes in place. One that is dropped without writing never leaves, and
+  // then the remaining user pays for one copy it did not need. Parallel
+  // callbacks may copy the same array at once, hence the atomic count.
+  private AtomicInteger owners;
+
+  MabelArray() {
+  }
+
+  MabelArray(Collection<?> elements) {
+    if (elements instanceof MabelArray) {
+      share((MabelArray) elements, 0, elements.size());
+      return;
+    }
+    // A record array's elements are views onto its columns; copy the records
+    // out so the new array does not write through to them.
+    if (elements instanceof RecordArray) {
+      RecordArray records = (RecordArray) elements;
+      for (int i = 0; i < records.size(); i++) {
+        add(records.snapshot(i));
+      }
+      return;
+    }
+    for (Object element : elements) {
+      add(element);
+    }
+  }
+
+  // Adopts the first size elements, unboxing them if they are all numbers.
+  // The array must not be used by the caller afterwards.
+  static MabelArray of(Object[] elements, int size) {
+    MabelArray array = new MabelArray();
+    if (size == 0) {
+      return array;
+    }
+
+    boolean numeric = true;
+    for (int i = 0; i < size && numeric; i++) {
+      numeric = elements[i] instanceof Double;
+    }
+    if (numeric) {
+      array.numbers = new double[size];
+      for (int i = 0; i < size; i++) {
+        array.numbers[i] = (Double) elements[i];
+      }
+    } else {
+      array.objects = elements;
+    }
+    array.size = size;
+    return array;
+  }
+
+  // Adopts values as an all-number array.
+  static MabelArray ofNumbers(double[] values) {
+    MabelArray array = new MabelArray();
+    if (values.length > 0) {
+      array.numbers = values;
+      array.size = values.length;
+    }
+    return array;
+  }
+
+  private void share(MabelArray source, int start, int end) {
+    if (source.numbers != null || source.objects != null) {
+      numbers = source.numbers;
+      objects = source.objects;
+      head = source.slot(start);
+      size = end - start;
+      if (source.owners == null) {
+        source.owners = new AtomicInteger(1);
+      }
+      owners = source.owners;
+      owners.incrementAndGet();
+    }
+  }
+
+  // The elements from start up to end, sharing this array's storage.
+  MabelArray slice(int start, int end) {
+    MabelArray view = new MabelArray();
+    view.share(this, start, end);
+    return view;
+  }
+
+  boolean isNumeric() {
+    return numbers != null;
+  }
+
+  // The backing double[] with the elements lined up from position 0, for
+  // numeric kernels to read; null unless the array holds only numbers. Only
+  // the first size() entries are elements, and it may be shared, so callers
+  // must not write to it. An array that went to Object[] and has since been
+  // filled back with numbers is unboxed into a fresh copy.
+  double[] numberStorage() {
+    if (size == 0) {
+      return new double[0];
+    }
+    if (numbers == null) {
+      return unboxedObjects();
+    }
+    if (head != 0) {
+      double[] contiguous = new double[size];
+      copyNumbers(contiguous);
+      return contiguous;
+    }
+    return numbers;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  private int capacity() {
+    return numbers != null ? numbers.length : objects.length;
+  }
+
+  // Backing array position of element index.
+  private int slot(int index) {
+    int slot = head + index;
+    int capacity = capacity();
+    return slot >= capacity ? slot - capacity : slot;
+  }
+
+  @Override
+  public Object get(int index) {
+    checkIndex(index);
+    if (numbers != null) {
+      return VirtualMachine.number(numbers[slot(index)]);
+    }
+    return objects[slot(index)];
+  }
+
+  @Override
+  public Object set(int index, Object value) {
+    checkIndex(index);
+    if (numbers != null && !(value instanceof Double)) {
+      generalize(Math.max(size, MIN_CAPACITY));
+    } else {
+      unshare();
+    }
+    int slot = slot(index);
+    if (numbers != null) {
+      double old = numbers[slot];
+      numbers[slot] = (Double) value;
+      return old;
+    }
+    Object old = objects[slot];
+    objects[slot] = value;
+    return old;
+  }
+
+  @Override
+  public boolean add(Object value) {
+    ensureStrategy(value);
+    ensureCapacity(size + 1);
+    store(slot(size), value);
+    size++;
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public void add(int index, Object value) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    ensureStrategy(value);
+    ensureCapacity(size + 1);
+    if (index == 0) {
+      head = head == 0 ? capacity() - 1 : head - 1;
+    } else {
+      for (int i = size; i > index; i--) {
+        move(slot(i - 1), slot(i));
+      }
+    }
+    store(slot(index), value);
+    size++;
+    modCount++;
+  }
+
+  @Override
+  public Object remove(int index) {
+    Object removed = get(index);
+    unshare();
+    if (index == 0) {
+      store(head, null);
+      head = slot(1);
+    } else {
+      for (int i = index; i < size - 1; i++) {
+        move(slot(i + 1), slot(i));
+      }
+      store(slot(size - 1), null);
+    }
+    size--;
+    modCount++;
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    numbers = null;
+    objects = null;
+    head = 0;
+    size = 0;
+    release();
+    modCount++;
+  }
+
+  // Searches and comparisons match elements the way == does, so a String
+  // finds an equal rope and the other way round.
+  @Override
+  public int indexOf(Object value) {
+    if (numbers != null) {
+      if (!(value instanceof Double)) {
+        return -1;
+      }
+      long bits = Double.doubleToLongBits((Double) value);
+      for (int i = 0; i < size; i++) {
+        if (Double.doubleToLongBits(numbers[slot(i)]) == bits) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    for (int i = 0; i < size; i++) {
+      if (Rope.equal(objects[slot(i)], value)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean contains(Object value) {
+    return indexOf(value) >= 0;
+  }
+
+  @Override
+  public boolean remove(Object value) {
+    int index = indexOf(value);
+    if (index < 0) {
+      return false;
+    }
+    remove(index);
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) {
+      return true;
+    }
+    if (!(other instanceof List) || ((List<?>) other).size() != size) {
+      return false;
+    }
+    List<?> list = (List<?>) other;
+    for (int i = 0; i < size; i++) {
+      if (!Rope.equal(get(i), list.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 1;
+    for (int i = 0; i < size; i++) {
+      hash = 31 * hash + Rope.hash(get(i));
+    }
+    return hash;
+  }
+
+  @Override
+  public void sort(Comparator<? super Object> comparator) {
+    sort(comparator, false);
+  }
+
+  // Sorts across the common fork/join pool; worth it from tens of thousands
+  // of elements.
+  void parallelSort(Comparator<? super Object> comparator) {
+    sort(comparator, true);
+  }
+
+  private void sort(Comparator<? super Object> comparator, boolean parallel) {
+    if (numbers == null && objects == null) {
+      return;
+    }
+    // Sorting needs the elements contiguous from position 0.
+    if (isShared() || head != 0) {
+      resize(Math.max(size, MIN_CAPACITY));
+    }
+    if (numbers != null && comparator == null) {
+      if (parallel) {
+        Arrays.parallelSort(numbers, 0, size);
+      } else {
+        Arrays.sort(numbers, 0, size);
+      }
+    } else if (numbers != null) {
+      Object[] boxed = toArray();
+      if (parallel) {
+        Arrays.parallelSort(boxed, comparator);
+      } else {
+        Arrays.sort(boxed, comparator);
+      }
+      for (int i = 0; i < size; i++) {
+        numbers[i] = (Double) boxed[i];
+      }
+    } else if (parallel) {
+      Arrays.parallelSort(objects, 0, size, comparator);
+    } else {
+      Arrays.sort(objects, 0, size, comparator);
+    }
+    modCount++;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  // Stores into a slot of the active strategy; ensureStrategy has already
+  // made sure a number array only receives numbers.
+  private void store(int slot, Object value) {
+    if (numbers != null) {
+      if (value != null) {
+        numbers[slot] = (Double) value;
+      }
+    } else {
+      objects[slot] = value;
+    }
+  }
+
+  private void move(int from, int to) {
+    if (numbers != null) {
+      numbers[to] = numbers[from];
+    } else {
+      objects[to] = objects[from];
+    }
+  }
+
+  // An empty array takes the strategy of its first element; a numeric one
+  // generalizes when anything else arrives, leaving room for one more.
+  private void ensureStrategy(Object value) {
+    if (numbers == null && objects == null) {
+      if (value instanceof Double) {
+        numbers = new double[MIN_CAPACITY];
+      } else {
+        objects = new Object[MIN_CAPACITY];
+      }
+      head = 0;
+    } else if (numbers != null && !(value instanceof Double)) {
+      generalize(grown(size + 1));
+    }
+  }
+
+  private void generalize(int capacity) {
+    Object[] boxed = new Object[capacity];
+    copyObjects(boxed);
+    objects = boxed;
+    numbers = null;
+    head = 0;
+    release();
+  }
+
+  private boolean isShared() {
+    return owners != null && owners.get() > 1;
+  }
+
+  private void release() {
+    if (owners != null) {
+      owners.decrementAndGet();
+      owners = null;
+    }
+  }
+
+  // Takes a private copy before an in-place write.
+  private void unshare() {
+    if (isShared()) {
+      resize(Math.max(size, MIN_CAPACITY));
+    }
+  }
+
+  // Makes room for capacity elements before a write that adds one. A shared
+  // backing array is copied out once, straight into the larger size.
+  private void ensureCapacity(int capacity) {
+    int length = capacity();
+    if (isShared()) {
+      resize(grown(capacity));
+    } else if (capacity > length) {
+      resize(Math.max(capacity, length + (length >> 1)));
+    }
+  }
+
+  // A backing array size for capacity elements with room to grow.
+  private static int grown(int capacity) {
+    return Math.max(MIN_CAPACITY, capacity + (capacity >> 1));
+  }
+
+  // Moves the elements into a fresh backing array, starting at position 0.
+  private void resize(int capacity) {
+    if (numbers != null) {
+      double[] resized = new double[capacity];
+      copyNumbers(resized);
+      numbers = resized;
+    } else {
+      Object[] resized = new Object[capacity];
+      copyObjects(resized);
+      objects = resized;
+    }
+    head = 0;
+    release();
+  }
+
+  private double[] unboxedObjects() {
+    double[] unboxed = new double[size];
+    for (int i = 0; i < size; i++) {
+      Object element = objects[slot(i)];
+      if (!(element instanceof Double)) {
+        return null;
+      }
+      unboxed[i] = (Double) element;
+    }
+    return unboxed;
+  }
+
+  private void copyNumbers(double[] target) {
+    int first = Math.min(size, numbers.length - head);
+    System.arraycopy(numbers, head, target, 0, first);
+    System.arraycopy(numbers, 0, target, first, size - first);
+  }
+
+  private void copyObjects(Object[] target) {
+    if (numbers != null) {
+      for (int i = 0; i < size; i++) {
+        target[i] = numbers[slot(i)];
+      }
+      return;
+    }
+    int first = Math.min(size, objects.length - head);
+    System.arraycopy(objects, head, target, 0, first);
+    System.arraycopy(objects, 0, target, first, size - first);
+  }
+}
@@ -3,18 +3,44 @@ import java.util.*;
 abstract class MabelBuiltin {
     private final String name;
     private final int arity;
+    private final int maxArity;
 
     public MabelBuiltin(String name, int arity) {
+        this(name, arity, arity);
+    }
+
+    // For builtins whose trailing arguments are optional.
+    public MabelBuiltin(String name, int arity, int maxArity) {
         this.name = name;
         this.arity = arity;
+        this.maxArity = maxArity;
     }
 
     public abstract Object call(List<Object> args);
 
+    // Entry points for calls with one or two arguments, which the VM uses
+    // instead of building an argument list. Builtins that are called often
+    // override them with the real work and have call() delegate.
+    public Object call1(Object arg) {
+        return call(Arrays.asList(arg));
+    }
+
+    public Object call2(Object a, Object b) {
+        return call(Arrays.asList(a, b));
+    }
+
+    public String name() {
+        return name;
+    }
+
     public int arity() {
         return arity;
     }
 
+    public int maxArity() {
+        return maxArity;
+    }
+
     @Override
     public String toString() {
         return "<builtin " + name + ">";
@@ -0,0 +1,8 @@
+import java.util.*;
+
+// Contributes builtins to every Mabel program. Implementations are found with
+// ServiceLoader: list the class in META-INF/services/MabelBuiltinProvider on
+// the classpath. A builtin with the name of a core one replaces it.
+public interface MabelBuiltinProvider {
+    List<MabelBuiltin> builtins();
+}
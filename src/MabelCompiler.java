@@ -1,17 +1,30 @@
 import java.io.*;
 import java.nio.file.*;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class MabelCompiler {
     private static boolean hadError = false;
+    private static Path profileOut = null;
+    private static Path profileIn = null;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: java MabelCompiler [script]");
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--profile-out") && i + 1 < args.length) {
+                profileOut = Paths.get(args[++i]);
+            } else if (args[i].equals("--profile-in") && i + 1 < args.length) {
+                profileIn = Paths.get(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+
+        if (files.size() > 1) {
+            System.out.println("Usage: java MabelCompiler [--profile-out file.mprof] [--profile-in file.mprof] [script]");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (files.size() == 1) {
+            runFile(files.get(0));
         } else {
             runPrompt();
         }
@@ -45,7 +58,7 @@ public class MabelCompiler {
 
             System.out.println("Running compiled Mabel bytecode: " + path);
             VirtualMachine vm = new VirtualMachine(chunk);
-            vm.run();
+            runProfiled(vm);
 
         } catch (ClassNotFoundException e) {
             System.err.println("Error: Invalid bytecode file format");
@@ -67,10 +80,20 @@ public class MabelCompiler {
         if (hadError)
             return;
 
-        VirtualMachine tempVm = new VirtualMachine(new Chunk());
-        Compiler compiler = new Compiler(tempVm);
+        Profile profile = null;
+        if (profileIn != null) {
+            profile = Profile.read(profileIn);
+            System.out.println("Using profile: " + profileIn);
+        }
+
+        Compiler compiler = profile != null ? new Compiler(profile) : new Compiler();
         Chunk chunk = compiler.compile(statements);
 
+        if (profile != null && profile.getCodeSize() != chunk.size()) {
+            System.err.println("Warning: profile " + profileIn + " was recorded for a different version of "
+                    + "this program; specializations may not apply.");
+        }
+
         try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFile))) {
             oos.writeObject(new SerializableChunk(chunk));
         }
@@ -168,29 +191,32 @@ public class MabelCompiler {
             if (hadError)
                 return;
 
-            VirtualMachine vm = new VirtualMachine(new Chunk());
-            Compiler compiler = new Compiler(vm);
+            Compiler compiler = new Compiler();
             Chunk chunk = compiler.compile(statements);
 
-            VirtualMachine finalVm = new VirtualMachine(chunk);
-
-            Map<String, Object> compileGlobals = vm.getGlobals();
-            Map<String, Object> execGlobals = finalVm.getGlobals();
-            for (String key : compileGlobals.keySet()) {
-                Object value = compileGlobals.get(key);
-                if (value instanceof MabelFunction) {
-                    execGlobals.put(key, value);
-                    System.out.println("DEBUG: Copied function '" + key + "' to execution VM");
-                }
-            }
-
-            finalVm.run();
+            runProfiled(new VirtualMachine(chunk));
         } catch (Exception e) {
             System.err.println("Runtime error: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    private static void runProfiled(VirtualMachine vm) throws IOException {
+        if (profileOut == null) {
+            vm.run();
+            return;
+        }
+
+        Profile profile = new Profile();
+        vm.setProfile(profile);
+        try {
+            vm.run();
+        } finally {
+            profile.write(profileOut);
+            System.out.println("Wrote profile: " + profileOut);
+        }
+    }
+
     static void error(int line, String message) {
         report(line, "", message);
     }
@@ -7,6 +7,7 @@ class MabelFunction implements MabelCallable, Serializable {
   private final Stmt.Function declaration;
   private final Environment closure;
   private final boolean isInitializer;
+  private transient String[] paramSlots;
 
   MabelFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
     this.declaration = declaration;
@@ -42,36 +43,30 @@ class MabelFunction implements MabelCallable, Serializable {
     // System.out.println("DEBUG: Function " + declaration.name.lexeme + " called
     // with args: " + arguments);
 
-    Environment globalEnv = new Environment();
-
-    Map<String, Object> vmGlobals = vm.getGlobals();
-    globalEnv.define("print", vmGlobals.get("print"));
-    globalEnv.define("len", vmGlobals.get("len"));
-    globalEnv.define("str", vmGlobals.get("str"));
-    globalEnv.define("num", vmGlobals.get("num"));
+    if (paramSlots == null) {
+      paramSlots = new String[declaration.params.size()];
+      for (int i = 0; i < paramSlots.length; i++) {
+        paramSlots[i] = declaration.params.get(i).lexeme;
+      }
+    }
 
-    Environment environment = new Environment(globalEnv);
+    Environment environment = new Environment(vm.getGlobalScope(), paramSlots);
 
-    if (declaration.params != null && arguments != null) {
-      for (int i = 0; i < declaration.params.size(); i++) {
-        if (i < arguments.size()) {
-          String paramName = declaration.params.get(i).lexeme;
-          Object argValue = arguments.get(i);
-          // System.out.println("DEBUG: Binding parameter '" + paramName + "' to value: "
-          // + argValue);
-          environment.define(paramName, argValue);
-        }
+    if (arguments != null) {
+      for (int i = 0; i < paramSlots.length && i < arguments.size(); i++) {
+        // System.out.println("DEBUG: Binding parameter '" + paramSlots[i] + "' to value: "
+        // + arguments.get(i));
+        environment.setSlot(i, arguments.get(i));
       }
     }
 
-    try {
-      // System.out.println("DEBUG: Executing function body...");
-      vm.executeBlock(declaration.body, environment);
-    } catch (ReturnValue returnValue) {
-      // System.out.println("DEBUG: Function returned: " + returnValue.value);
+    // System.out.println("DEBUG: Executing function body...");
+    Object signal = vm.executeBlock(declaration.body, environment);
+    if (signal instanceof ReturnValue) {
+      // System.out.println("DEBUG: Function returned: " + ((ReturnValue) signal).value);
       if (isInitializer)
         return closure != null ? closure.getAt(0, "this") : null;
-      return returnValue.value;
+      return ((ReturnValue) signal).value;
     }
 
     if (isInitializer)
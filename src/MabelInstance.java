@@ -2,15 +2,17 @@ import java.util.*;
 
 class MabelInstance {
   private MabelClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+  private Shape shape = Shape.EMPTY;
+  private Object[] slots = new Object[0];
 
   MabelInstance(MabelClass klass) {
     this.klass = klass;
   }
 
   Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+    int index = shape.indexOf(name.lexeme);
+    if (index >= 0) {
+      return slots[index];
     }
 
     MabelFunction method = klass.findMethod(name.lexeme);
@@ -21,7 +23,13 @@ class MabelInstance {
   }
 
   void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+    int index = shape.indexOf(name.lexeme);
+    if (index < 0) {
+      shape = shape.with(name.lexeme);
+      index = shape.size() - 1;
+      slots = Arrays.copyOf(slots, shape.size());
+    }
+    slots[index] = value;
   }
 
   @Override
@@ -0,0 +1,205 @@
+import java.util.*;
+
+// The map value behind {key: value} literals. Entries live in dense arrays
+// in insertion order, and an open-addressing index of entry positions finds
+// them with linear probing. Strings cache their hash and numbers hash their
+// bits directly, so the common key types never go through a wrapper.
+class MabelMap {
+  private static final int MIN_CAPACITY = 8;
+  // Index slots hold entry + 1; 0 is empty and DELETED is a tombstone.
+  private static final int DELETED = -1;
+  private static final Object REMOVED = new Object();
+
+  private int[] index;
+  private Object[] keys;
+  private Object[] values;
+  private int[] hashes;
+  private int used = 0;
+  private int size = 0;
+
+  MabelMap() {
+    this(0);
+  }
+
+  MabelMap(int expected) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * 2 < expected * 3) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    index = new int[capacity];
+    keys = new Object[capacity * 2 / 3 + 1];
+    values = new Object[keys.length];
+    hashes = new int[keys.length];
+  }
+
+  // Callers flatten ropes first, so equal strings hash alike.
+  private static int hash(Object key) {
+    int h;
+    if (key instanceof Double) {
+      long bits = Double.doubleToLongBits((Double) key);
+      h = (int) (bits ^ (bits >>> 32));
+    } else {
+      h = key.hashCode();
+    }
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static Object checkKey(Object key) {
+    if (key == null) {
+      throw new RuntimeException("Map keys cannot be nil.");
+    }
+    return key;
+  }
+
+  // Index slot holding the key, or -1.
+  private int find(Object key, int hash) {
+    int mask = index.length - 1;
+    for (int i = hash & mask;; i = (i + 1) & mask) {
+      int slot = index[i];
+      if (slot == 0) {
+        return -1;
+      }
+      if (slot > 0) {
+        int entry = slot - 1;
+        Object candidate = keys[entry];
+        if (hashes[entry] == hash && (candidate == key || candidate.equals(key))) {
+          return i;
+        }
+      }
+    }
+  }
+
+  Object get(Object key) {
+    key = Rope.flatten(key);
+    if (key == null) {
+      return null;
+    }
+    int i = find(key, hash(key));
+    return i < 0 ? null : values[index[i] - 1];
+  }
+
+  boolean containsKey(Object key) {
+    key = Rope.flatten(key);
+    return key != null && find(key, hash(key)) >= 0;
+  }
+
+  void put(Object key, Object value) {
+    key = Rope.flatten(key);
+    int hash = hash(checkKey(key));
+    int i = find(key, hash);
+    if (i >= 0) {
+      values[index[i] - 1] = value;
+      return;
+    }
+
+    if (used == keys.length) {
+      resize();
+    }
+
+    int mask = index.length - 1;
+    i = hash & mask;
+    while (index[i] > 0) {
+      i = (i + 1) & mask;
+    }
+    keys[used] = key;
+    values[used] = value;
+    hashes[used] = hash;
+    index[i] = ++used;
+    size++;
+  }
+
+  Object remove(Object key) {
+    key = Rope.flatten(key);
+    if (key == null) {
+      return null;
+    }
+    int i = find(key, hash(key));
+    if (i < 0) {
+      return null;
+    }
+
+    int entry = index[i] - 1;
+    Object value = values[entry];
+    index[i] = DELETED;
+    keys[entry] = REMOVED;
+    values[entry] = null;
+    size--;
+    return value;
+  }
+
+  // Compacts out removed entries, and doubles the table if it is still
+  // more than half full.
+  private void resize() {
+    Object[] oldKeys = keys;
+    Object[] oldValues = values;
+    int[] oldHashes = hashes;
+    int oldUsed = used;
+
+    int capacity = index.length;
+    if (size * 2 >= keys.length) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+
+    int mask = capacity - 1;
+    used = 0;
+    for (int entry = 0; entry < oldUsed; entry++) {
+      if (oldKeys[entry] == REMOVED) {
+        continue;
+      }
+      int i = oldHashes[entry] & mask;
+      while (index[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      keys[used] = oldKeys[entry];
+      values[used] = oldValues[entry];
+      hashes[used] = oldHashes[entry];
+      index[i] = ++used;
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  List<Object> keys() {
+    List<Object> result = new MabelArray();
+    for (int entry = 0; entry < used; entry++) {
+      if (keys[entry] != REMOVED) {
+        result.add(keys[entry]);
+      }
+    }
+    return result;
+  }
+
+  List<Object> values() {
+    List<Object> result = new MabelArray();
+    for (int entry = 0; entry < used; entry++) {
+      if (keys[entry] != REMOVED) {
+        result.add(values[entry]);
+      }
+    }
+    return result;
+  }
+
+  String stringify() {
+    StringBuilder sb = new StringBuilder("{");
+    boolean first = true;
+    for (int entry = 0; entry < used; entry++) {
+      if (keys[entry] == REMOVED) {
+        continue;
+      }
+      if (!first) {
+        sb.append(", ");
+      }
+      first = false;
+      sb.append(VirtualMachine.stringify(keys[entry])).append(": ").append(VirtualMachine.stringify(values[entry]));
+    }
+    return sb.append("}").toString();
+  }
+}
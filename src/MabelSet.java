@@ -0,0 +1,171 @@
+import java.util.*;
+
+// The set value returned by set(). Numbers, the common case for
+// deduplication, live unboxed in an open-addressing table of their raw bits;
+// any other value goes into a MabelMap used as a key set. Membership follows
+// equals(), the same rule == uses.
+class MabelSet {
+  private static final int MIN_CAPACITY = 8;
+  private static final byte EMPTY = 0;
+  private static final byte FULL = 1;
+  private static final byte DELETED = 2;
+
+  private long[] numbers = new long[MIN_CAPACITY];
+  private byte[] states = new byte[MIN_CAPACITY];
+  private int numberCount = 0;
+  // Full and deleted slots; the table is rebuilt before this passes 2/3.
+  private int numberSlotsUsed = 0;
+  private final MabelMap others = new MabelMap();
+
+  private static int hash(long bits) {
+    bits *= 0x9E3779B97F4A7C15L;
+    return (int) (bits ^ (bits >>> 32));
+  }
+
+  // Slot holding the number, or -1.
+  private int findNumber(long bits) {
+    int mask = numbers.length - 1;
+    for (int i = hash(bits) & mask;; i = (i + 1) & mask) {
+      if (states[i] == EMPTY) {
+        return -1;
+      }
+      if (states[i] == FULL && numbers[i] == bits) {
+        return i;
+      }
+    }
+  }
+
+  private boolean addNumber(long bits) {
+    if (findNumber(bits) >= 0) {
+      return false;
+    }
+    if ((numberSlotsUsed + 1) * 3 > numbers.length * 2) {
+      rehash(numberCount * 3 >= numbers.length ? numbers.length * 2 : numbers.length);
+    }
+
+    int mask = numbers.length - 1;
+    int i = hash(bits) & mask;
+    while (states[i] == FULL) {
+      i = (i + 1) & mask;
+    }
+    if (states[i] == EMPTY) {
+      numberSlotsUsed++;
+    }
+    numbers[i] = bits;
+    states[i] = FULL;
+    numberCount++;
+    return true;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldNumbers = numbers;
+    byte[] oldStates = states;
+    numbers = new long[capacity];
+    states = new byte[capacity];
+    numberSlotsUsed = numberCount;
+
+    int mask = capacity - 1;
+    for (int j = 0; j < oldNumbers.length; j++) {
+      if (oldStates[j] == FULL) {
+        int i = hash(oldNumbers[j]) & mask;
+        while (states[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        numbers[i] = oldNumbers[j];
+        states[i] = FULL;
+      }
+    }
+  }
+
+  boolean add(Object value) {
+    if (value instanceof Double) {
+      return addNumber(Double.doubleToLongBits((Double) value));
+    }
+    if (value == null) {
+      throw new RuntimeException("Sets cannot hold nil.");
+    }
+    if (others.containsKey(value)) {
+      return false;
+    }
+    others.put(value, Boolean.TRUE);
+    return true;
+  }
+
+  boolean contains(Object value) {
+    if (value instanceof Double) {
+      return findNumber(Double.doubleToLongBits((Double) value)) >= 0;
+    }
+    return others.containsKey(value);
+  }
+
+  boolean delete(Object value) {
+    if (value instanceof Double) {
+      int i = findNumber(Double.doubleToLongBits((Double) value));
+      if (i < 0) {
+        return false;
+      }
+      states[i] = DELETED;
+      numberCount--;
+      return true;
+    }
+    if (!others.containsKey(value)) {
+      return false;
+    }
+    others.remove(value);
+    return true;
+  }
+
+  int size() {
+    return numberCount + others.size();
+  }
+
+  List<Object> values() {
+    List<Object> result = new MabelArray();
+    for (int i = 0; i < numbers.length; i++) {
+      if (states[i] == FULL) {
+        result.add(Double.longBitsToDouble(numbers[i]));
+      }
+    }
+    result.addAll(others.keys());
+    return result;
+  }
+
+  MabelSet union(MabelSet other) {
+    MabelSet result = new MabelSet();
+    result.addAll(this);
+    result.addAll(other);
+    return result;
+  }
+
+  MabelSet intersect(MabelSet other) {
+    MabelSet smaller = size() <= other.size() ? this : other;
+    MabelSet larger = smaller == this ? other : this;
+    MabelSet result = new MabelSet();
+    for (int i = 0; i < smaller.numbers.length; i++) {
+      if (smaller.states[i] == FULL && larger.findNumber(smaller.numbers[i]) >= 0) {
+        result.addNumber(smaller.numbers[i]);
+      }
+    }
+    for (Object value : smaller.others.keys()) {
+      if (larger.others.containsKey(value)) {
+        result.add(value);
+      }
+    }
+    return result;
+  }
+
+  private void addAll(MabelSet source) {
+    for (int i = 0; i < source.numbers.length; i++) {
+      if (source.states[i] == FULL) {
+        addNumber(source.numbers[i]);
+      }
+    }
+    for (Object value : source.others.keys()) {
+      add(value);
+    }
+  }
+
+  String stringify() {
+    return "set" + VirtualMachine.stringify(values());
+  }
+}
@@ -0,0 +1,95 @@
+import java.util.*;
+
+// Wraps a pure function in a bounded cache keyed on its argument values.
+// Keys compare with the same equals() the VM uses for ==, and the least
+// recently used entry is evicted once maxEntries is reached.
+class MemoizedFunction implements MabelCallable {
+  private final MabelCallable function;
+  private final int maxEntries;
+  private final LinkedHashMap<List<Object>, Object> cache;
+  private long hits = 0;
+  private long misses = 0;
+
+  MemoizedFunction(MabelCallable function, int maxEntries) {
+    this.function = function;
+    this.maxEntries = maxEntries;
+    this.cache = new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+        return size() > MemoizedFunction.this.maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public int arity() {
+    return function.arity();
+  }
+
+  @Override
+  public Object call(VirtualMachine vm, List<Object> arguments) {
+    List<Object> key = key(arguments);
+    Object cached = lookup(key);
+    if (cached != MISS) {
+      return cached;
+    }
+
+    // The cache is not held while the body runs, so recursive calls can
+    // fill in smaller subproblems first.
+    Object result = function.call(vm, arguments);
+    store(key, result);
+    return result;
+  }
+
+  // The arguments as a cache key, with ropes flattened so that equal text
+  // hashes and compares the same whichever form it arrives in.
+  static List<Object> key(List<Object> arguments) {
+    List<Object> key = new ArrayList<>(arguments.size());
+    for (Object argument : arguments) {
+      key.add(Rope.flatten(argument));
+    }
+    return key;
+  }
+
+  // Returned by lookup when the arguments have no cached result.
+  static final Object MISS = new Object();
+
+  // The cache on its own, for the VM's frame loop, which runs the wrapped
+  // function as a frame and stores the result when it returns.
+  Object lookup(List<Object> key) {
+    synchronized (cache) {
+      Object cached = cache.get(key);
+      if (cached != null || cache.containsKey(key)) {
+        hits++;
+        return cached;
+      }
+      misses++;
+      return MISS;
+    }
+  }
+
+  void store(List<Object> key, Object result) {
+    synchronized (cache) {
+      cache.put(key, result);
+    }
+  }
+
+  MabelCallable getFunction() {
+    return function;
+  }
+
+  List<Object> stats() {
+    synchronized (cache) {
+      List<Object> stats = new ArrayList<>();
+      stats.add((double) hits);
+      stats.add((double) misses);
+      stats.add((double) cache.size());
+      return stats;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<memo " + function + ">";
+  }
+}
@@ -6,6 +6,7 @@ class Parser {
 
     private final List<Token> tokens;
     private int current = 0;
+    private int loopDepth = 0;
 
     Parser(List<Token> tokens) {
         this.tokens = tokens;
@@ -141,7 +142,14 @@ class Parser {
         }
 
         consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        int enclosingLoopDepth = loopDepth;
+        loopDepth = 0;
+        List<Stmt> body;
+        try {
+            body = block();
+        } finally {
+            loopDepth = enclosingLoopDepth;
+        }
         return new Stmt.Function(name, parameters, paramTypes, returnType, body);
     }
 
@@ -154,6 +162,10 @@ class Parser {
             return printStatement();
         if (match(TokenType.RETURN))
             return returnStatement();
+        if (match(TokenType.BREAK))
+            return breakStatement();
+        if (match(TokenType.CONTINUE))
+            return continueStatement();
         if (match(TokenType.WHILE))
             return whileStatement();
         if (match(TokenType.LEFT_BRACE))
@@ -165,6 +177,14 @@ class Parser {
     private Stmt forStatement() {
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
 
+        if (check(TokenType.IDENTIFIER) && checkNext(TokenType.IN)) {
+            Token name = advance();
+            advance();
+            Expr iterable = expression();
+            consume(TokenType.RIGHT_PAREN, "Expect ')' after for-in clause.");
+            return new Stmt.ForIn(name, iterable, loopBody());
+        }
+
         Stmt initializer;
         if (match(TokenType.SEMICOLON)) {
             initializer = null;
@@ -186,7 +206,7 @@ class Parser {
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
 
-        Stmt body = statement();
+        Stmt body = loopBody();
 
         return new Stmt.For(initializer, condition, increment, body);
     }
@@ -238,11 +258,38 @@ class Parser {
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
-        Stmt body = statement();
+        Stmt body = loopBody();
 
         return new Stmt.While(condition, body);
     }
 
+    private Stmt loopBody() {
+        loopDepth++;
+        try {
+            return statement();
+        } finally {
+            loopDepth--;
+        }
+    }
+
+    private Stmt breakStatement() {
+        Token keyword = previous();
+        if (loopDepth == 0) {
+            error(keyword, "Can't use 'break' outside of a loop.");
+        }
+        consumeEndOfStatement("Expect newline or semicolon after 'break'.");
+        return new Stmt.Break(keyword);
+    }
+
+    private Stmt continueStatement() {
+        Token keyword = previous();
+        if (loopDepth == 0) {
+            error(keyword, "Can't use 'continue' outside of a loop.");
+        }
+        consumeEndOfStatement("Expect newline or semicolon after 'continue'.");
+        return new Stmt.Continue(keyword);
+    }
+
     private Stmt expressionStatement() {
         Expr expr = expression();
         consumeEndOfStatement("Expect newline or semicolon after expression.");
@@ -451,6 +498,25 @@ class Parser {
             return new Expr.Array(elements);
         }
 
+        if (match(TokenType.LEFT_BRACE)) {
+            List<Expr> keys = new ArrayList<>();
+            List<Expr> values = new ArrayList<>();
+            skipNewlines();
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                keys.add(expression());
+                consume(TokenType.COLON, "Expect ':' after map key.");
+                skipNewlines();
+                values.add(expression());
+                skipNewlines();
+                if (!match(TokenType.COMMA)) {
+                    break;
+                }
+                skipNewlines();
+            }
+            consume(TokenType.RIGHT_BRACE, "Expect '}' after map entries.");
+            return new Expr.Map(keys, values);
+        }
+
         throw error(peek(), "Expect expression.");
     }
 
@@ -478,6 +544,12 @@ class Parser {
         throw error(peek(), message);
     }
 
+    private void skipNewlines() {
+        while (check(TokenType.NEWLINE)) {
+            advance();
+        }
+    }
+
     private boolean checkEndOfStatement() {
         return check(TokenType.SEMICOLON) || check(TokenType.NEWLINE) || isAtEnd();
     }
@@ -488,6 +560,12 @@ class Parser {
         return peek().type == type;
     }
 
+    private boolean checkNext(TokenType type) {
+        if (isAtEnd())
+            return false;
+        return tokens.get(current + 1).type == type;
+    }
+
     private Token advance() {
         if (!isAtEnd())
             current++;
@@ -525,6 +603,8 @@ class Parser {
                 case IF:
                 case WHILE:
                 case RETURN:
+                case BREAK:
+                case CONTINUE:
                 case PRINT:
                 case NUMBER:
                 case AND:
@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Per-site type and branch feedback for a top-level chunk, keyed by bytecode
+// offset. Recorded by a --profile-out run and read back by --profile-in so the
+// compiler can emit specialized instructions for sites that were stable.
+class Profile {
+    private static final String HEADER = "mabel-profile 1";
+
+    // A loop this busy in the profiled run is compiled on its first back-edge.
+    private static final long HOT_LOOP_BACK_EDGES = 50;
+
+    // Counter slots: ADD sites count operand pairs, INDEX_GET sites receivers.
+    private static final int NUMBERS = 0;
+    private static final int ARRAYS = 0;
+    private static final int STRINGS = 1;
+    private static final int OTHER = 2;
+
+    private int codeSize = -1;
+    private final Map<Integer, long[]> addSites = new TreeMap<>();
+    private final Map<Integer, long[]> indexSites = new TreeMap<>();
+    private final Map<Integer, long[]> branchSites = new TreeMap<>();
+    private final Map<Integer, long[]> loopSites = new TreeMap<>();
+    private final Map<Integer, Map<String, Long>> callSites = new TreeMap<>();
+
+    void setCodeSize(int codeSize) {
+        this.codeSize = codeSize;
+    }
+
+    int getCodeSize() {
+        return codeSize;
+    }
+
+    void record(OpCode op, int offset, VirtualMachine vm) {
+        switch (op) {
+            case ADD:
+            case ADD_NUMBER:
+            case ADD_STRING: {
+                Object a = vm.peek(1);
+                Object b = vm.peek(0);
+                int kind = OTHER;
+                if (a instanceof Double && b instanceof Double) {
+                    kind = NUMBERS;
+                } else if (Rope.isString(a) && Rope.isString(b)) {
+                    kind = STRINGS;
+                }
+                counters(addSites, offset, 3)[kind]++;
+                break;
+            }
+
+            case INDEX_GET:
+            case INDEX_GET_ARRAY: {
+                Object receiver = vm.peek(1);
+                int kind = OTHER;
+                if (receiver instanceof List) {
+                    kind = ARRAYS;
+                } else if (Rope.isString(receiver)) {
+                    kind = STRINGS;
+                }
+                counters(indexSites, offset, 3)[kind]++;
+                break;
+            }
+
+            case CALL: {
+                Object callee = vm.peek(0);
+                String target = callee == null ? "nil" : callee.toString();
+                callSites.computeIfAbsent(offset, k -> new TreeMap<>()).merge(target, 1L, Long::sum);
+                break;
+            }
+
+            case JUMP_IF_FALSE:
+                counters(branchSites, offset, 2)[VirtualMachine.isTruthy(vm.peek()) ? 1 : 0]++;
+                break;
+
+            case LOOP:
+            case LOOP_HOT:
+                counters(loopSites, offset, 1)[0]++;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private static long[] counters(Map<Integer, long[]> sites, int offset, int size) {
+        long[] counts = sites.get(offset);
+        if (counts == null) {
+            counts = new long[size];
+            sites.put(offset, counts);
+        }
+        return counts;
+    }
+
+    private static boolean only(Map<Integer, long[]> sites, int offset, int kind) {
+        long[] counts = sites.get(offset);
+        if (counts == null) {
+            return false;
+        }
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total > 0 && counts[kind] == total;
+    }
+
+    boolean isNumberAdd(int offset) {
+        return only(addSites, offset, NUMBERS);
+    }
+
+    boolean isStringAdd(int offset) {
+        return only(addSites, offset, STRINGS);
+    }
+
+    boolean isArrayIndex(int offset) {
+        return only(indexSites, offset, ARRAYS);
+    }
+
+    boolean isHotLoop(int offset) {
+        long[] counts = loopSites.get(offset);
+        return counts != null && counts[0] >= HOT_LOOP_BACK_EDGES;
+    }
+
+    void write(Path path) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            out.println(HEADER);
+            out.println("code " + codeSize);
+            for (Map.Entry<Integer, long[]> site : addSites.entrySet()) {
+                long[] c = site.getValue();
+                out.println("add " + site.getKey() + " " + c[0] + " " + c[1] + " " + c[2]);
+            }
+            for (Map.Entry<Integer, long[]> site : indexSites.entrySet()) {
+                long[] c = site.getValue();
+                out.println("index " + site.getKey() + " " + c[0] + " " + c[1] + " " + c[2]);
+            }
+            for (Map.Entry<Integer, long[]> site : branchSites.entrySet()) {
+                long[] c = site.getValue();
+                out.println("branch " + site.getKey() + " " + c[0] + " " + c[1]);
+            }
+            for (Map.Entry<Integer, long[]> site : loopSites.entrySet()) {
+                out.println("loop " + site.getKey() + " " + site.getValue()[0]);
+            }
+            for (Map.Entry<Integer, Map<String, Long>> site : callSites.entrySet()) {
+                for (Map.Entry<String, Long> target : site.getValue().entrySet()) {
+                    out.println("call " + site.getKey() + " " + target.getValue() + " " + target.getKey());
+                }
+            }
+        }
+    }
+
+    static Profile read(Path path) throws IOException {
+        Profile profile = new Profile();
+        List<String> lines = Files.readAllLines(path);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            throw new IOException("Not a Mabel profile: " + path);
+        }
+
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ", 4);
+            try {
+                switch (parts[0]) {
+                    case "code":
+                        profile.codeSize = Integer.parseInt(parts[1]);
+                        break;
+                    case "add":
+                        profile.addSites.put(Integer.parseInt(parts[1]), longs(line, 3));
+                        break;
+                    case "index":
+                        profile.indexSites.put(Integer.parseInt(parts[1]), longs(line, 3));
+                        break;
+                    case "branch":
+                        profile.branchSites.put(Integer.parseInt(parts[1]), longs(line, 2));
+                        break;
+                    case "loop":
+                        profile.loopSites.put(Integer.parseInt(parts[1]), longs(line, 1));
+                        break;
+                    case "call":
+                        profile.callSites.computeIfAbsent(Integer.parseInt(parts[1]), k -> new TreeMap<>())
+                                .put(parts[3], Long.parseLong(parts[2]));
+                        break;
+                    default:
+                        throw new IOException("Unknown profile entry: " + line);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Malformed profile entry: " + line);
+            }
+        }
+        return profile;
+    }
+
+    private static long[] longs(String line, int count) {
+        String[] parts = line.split(" ");
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Long.parseLong(parts[2 + i]);
+        }
+        return values;
+    }
+}
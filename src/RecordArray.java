@@ -0,0 +1,297 @@
+import java.io.Serializable;
+import java.util.*;
+
+// A fixed-size array of records of one class, stored column-wise. Each field
+// gets one column shared by every record: a double[] while the field only
+// ever holds numbers, widened to Object[] the first time it holds anything
+// else. Indexing hands out a View, an instance of the class whose fields
+// read and write the columns, so methods and `this` work as usual.
+class RecordArray extends AbstractList<Object> implements RandomAccess, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final SerializableClass klass;
+  private final int size;
+  private Shape shape = Shape.EMPTY;
+  private Object[] columns = new Object[0];
+  // Which records have a value in each column.
+  private BitSet[] present = new BitSet[0];
+
+  RecordArray(SerializableClass klass, int size) {
+    this.klass = klass;
+    this.size = size;
+
+    for (Map.Entry<String, Object> entry : klass.getAllFieldDefaults().entrySet()) {
+      int column = addColumn(entry.getKey());
+      present[column].set(0, size);
+      if (entry.getValue() instanceof Double) {
+        Arrays.fill((double[]) columns[column], (Double) entry.getValue());
+      } else {
+        columns[column] = new Object[size];
+        Arrays.fill((Object[]) columns[column], entry.getValue());
+      }
+    }
+  }
+
+  private RecordArray(SerializableClass klass, int size, Shape shape) {
+    this.klass = klass;
+    this.size = size;
+    this.shape = shape;
+    this.columns = new Object[shape.size()];
+    this.present = new BitSet[shape.size()];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Object get(int index) {
+    checkIndex(index);
+    return new View(this, index);
+  }
+
+  // Makes the record at index a copy of value, dropping fields value lacks,
+  // and returns a detached copy of the record it replaced. Views are
+  // positional, so handing back the view would make swaps like the one in
+  // Collections.reverse write a row back onto itself.
+  @Override
+  public Object set(int index, Object value) {
+    checkIndex(index);
+    if (value instanceof View && ((View) value).records == this && ((View) value).index == index) {
+      return value;
+    }
+    if (!(value instanceof SerializableInstance) || ((SerializableInstance) value).getKlass() != klass) {
+      throw new RuntimeException("Records can only hold " + klass.getName() + " instances.");
+    }
+
+    SerializableInstance old = snapshot(index);
+    for (BitSet set : present) {
+      set.clear(index);
+    }
+    SerializableInstance instance = (SerializableInstance) value;
+    if (instance instanceof View) {
+      View view = (View) instance;
+      for (int column = 0; column < view.records.shape.size(); column++) {
+        String name = view.records.shape.nameAt(column);
+        if (view.records.present[column].get(view.index)) {
+          setField(index, name, view.records.getField(view.index, column));
+        }
+      }
+    } else {
+      Shape fields = instance.getShape();
+      for (int slot = 0; slot < fields.size(); slot++) {
+        setField(index, fields.nameAt(slot), instance.getSlot(slot));
+      }
+    }
+    return old;
+  }
+
+  // The record at index as a plain instance that no longer reads the columns.
+  SerializableInstance snapshot(int index) {
+    checkIndex(index);
+    SerializableInstance instance = new SerializableInstance(klass);
+    for (int column = 0; column < columns.length; column++) {
+      if (present[column].get(index)) {
+        instance.set(shape.nameAt(column), getField(index, column));
+      }
+    }
+    return instance;
+  }
+
+  // A new record array holding copies of the records from start up to end.
+  RecordArray copy(int start, int end) {
+    RecordArray copy = new RecordArray(klass, end - start, shape);
+    for (int column = 0; column < columns.length; column++) {
+      if (columns[column] instanceof double[]) {
+        copy.columns[column] = Arrays.copyOfRange((double[]) columns[column], start, end);
+      } else {
+        copy.columns[column] = Arrays.copyOfRange((Object[]) columns[column], start, end);
+      }
+      copy.present[column] = present[column].get(start, end);
+    }
+    return copy;
+  }
+
+  @Override
+  public void add(int index, Object element) {
+    throw new RuntimeException("Record arrays have a fixed size.");
+  }
+
+  @Override
+  public Object remove(int index) {
+    throw new RuntimeException("Record arrays have a fixed size.");
+  }
+
+  // Sorts the records, moving whole rows of every column; sorting the views
+  // through set() would overwrite rows that later views still read. Views
+  // held elsewhere keep their index, so they see the record moved there.
+  @Override
+  public void sort(Comparator<? super Object> comparator) {
+    Object[] views = toArray();
+    Arrays.sort(views, comparator);
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = ((View) views[i]).index;
+    }
+    permute(order);
+  }
+
+  // Reverses the records in place, moving whole rows as sort does.
+  void reverse() {
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = size - 1 - i;
+    }
+    permute(order);
+  }
+
+  // Rearranges the records so that record i is the one previously at order[i].
+  void permute(int[] order) {
+    for (int column = 0; column < columns.length; column++) {
+      BitSet was = present[column];
+      BitSet is = new BitSet(size);
+      if (columns[column] instanceof double[]) {
+        double[] values = (double[]) columns[column];
+        double[] moved = new double[size];
+        for (int i = 0; i < size; i++) {
+          moved[i] = values[order[i]];
+        }
+        columns[column] = moved;
+      } else {
+        Object[] values = (Object[]) columns[column];
+        Object[] moved = new Object[size];
+        for (int i = 0; i < size; i++) {
+          moved[i] = values[order[i]];
+        }
+        columns[column] = moved;
+      }
+      for (int i = 0; i < size; i++) {
+        if (was.get(order[i])) {
+          is.set(i);
+        }
+      }
+      present[column] = is;
+    }
+    modCount++;
+  }
+
+  SerializableClass getKlass() {
+    return klass;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new RuntimeException("Array index out of bounds.");
+    }
+  }
+
+  private int addColumn(String name) {
+    shape = shape.with(name);
+    int column = shape.size() - 1;
+    columns = Arrays.copyOf(columns, column + 1);
+    present = Arrays.copyOf(present, column + 1);
+    columns[column] = new double[size];
+    present[column] = new BitSet(size);
+    return column;
+  }
+
+  private Object getField(int index, int column) {
+    Object values = columns[column];
+    if (values instanceof double[]) {
+      return VirtualMachine.number(((double[]) values)[index]);
+    }
+    return ((Object[]) values)[index];
+  }
+
+  boolean hasField(int index, String name) {
+    int column = shape.indexOf(name);
+    return column >= 0 && present[column].get(index);
+  }
+
+  Object getField(int index, String name) {
+    int column = shape.indexOf(name);
+    if (column < 0 || !present[column].get(index)) {
+      throw new RuntimeException("Undefined property '" + name + "'.");
+    }
+    return getField(index, column);
+  }
+
+  void setField(int index, String name, Object value) {
+    int column = shape.indexOf(name);
+    if (column < 0) {
+      column = addColumn(name);
+    }
+
+    Object values = columns[column];
+    if (values instanceof double[]) {
+      if (value instanceof Double) {
+        ((double[]) values)[index] = (Double) value;
+        present[column].set(index);
+        return;
+      }
+      values = widen(column);
+    }
+    ((Object[]) values)[index] = value;
+    present[column].set(index);
+  }
+
+  private Object[] widen(int column) {
+    double[] numbers = (double[]) columns[column];
+    Object[] values = new Object[size];
+    BitSet set = present[column];
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+      values[i] = numbers[i];
+    }
+    columns[column] = values;
+    return values;
+  }
+
+  @Override
+  public String toString() {
+    return "<records " + klass.getName() + "[" + size + "]>";
+  }
+
+  // A window onto one position of the array. It holds the index, not the
+  // record, so after sort or permute it reads whatever record is there.
+  static class View extends SerializableInstance {
+    private static final long serialVersionUID = 1L;
+
+    private final RecordArray records;
+    private final int index;
+
+    View(RecordArray records, int index) {
+      super(records.klass);
+      this.records = records;
+      this.index = index;
+    }
+
+    @Override
+    Object get(String name) {
+      if (records.hasField(index, name)) {
+        return records.getField(index, name);
+      }
+      return super.get(name);
+    }
+
+    @Override
+    void set(String name, Object value) {
+      records.setField(index, name, value);
+    }
+
+    @Override
+    boolean has(String name) {
+      return records.hasField(index, name) || super.has(name);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof View && ((View) other).records == records && ((View) other).index == index;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(records) * 31 + index;
+    }
+  }
+}
@@ -1,8 +1,14 @@
-class ReturnValue extends RuntimeException {
+// Returned, not thrown, by the AST interpreter when a statement
+// transfers control, and passed up until the enclosing function or loop
+// consumes it.
+class ReturnValue {
   final Object value;
 
   ReturnValue(Object value) {
-    super(null, null, false, false);
     this.value = value;
   }
-}
\ No newline at end of file
+}
+
+enum LoopSignal {
+  BREAK, CONTINUE
+}
@@ -0,0 +1,105 @@
+import java.util.*;
+
+// A string built by concatenation, kept as a tree of its pieces until
+// something needs the characters. Concatenating onto a rope is O(1), so
+// `s = s + piece` in a loop stays linear; indexing, comparison, printing
+// and other reads flatten it once and reuse the result. Short results are
+// plain Strings, so ropes only appear once text gets long.
+final class Rope implements CharSequence {
+  private static final int MIN_LENGTH = 256;
+
+  // Pieces are Strings or Ropes; both are dropped once the rope is flattened.
+  private CharSequence left;
+  private CharSequence right;
+  private final int length;
+  private String flat;
+
+  private Rope(CharSequence left, CharSequence right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+
+  static CharSequence concat(CharSequence a, CharSequence b) {
+    long length = (long) a.length() + b.length();
+    if (length > Integer.MAX_VALUE) {
+      throw new RuntimeException("String too long.");
+    }
+    if (length < MIN_LENGTH) {
+      return a.toString() + b.toString();
+    }
+    return new Rope(a, b, (int) length);
+  }
+
+  static boolean isString(Object value) {
+    return value instanceof String || value instanceof Rope;
+  }
+
+  // The value with any rope flattened to a String.
+  static Object flatten(Object value) {
+    return value instanceof Rope ? value.toString() : value;
+  }
+
+  // Equality as == sees it, under which a rope equals the String with the
+  // same text. Rope keeps identity equals(): String.equals can never accept
+  // a rope, so an override could only ever hold in one direction. Code that
+  // compares values which may be ropes goes through here instead.
+  static boolean equal(Object a, Object b) {
+    a = flatten(a);
+    b = flatten(b);
+    return a == null ? b == null : a.equals(b);
+  }
+
+  static int hash(Object value) {
+    value = flatten(value);
+    return value == null ? 0 : value.hashCode();
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().substring(start, end);
+  }
+
+  // Walks the tree with an explicit stack, so long chains of concatenation
+  // cannot overflow the Java stack.
+  @Override
+  public synchronized String toString() {
+    if (flat == null) {
+      StringBuilder sb = new StringBuilder(length);
+      Deque<CharSequence> pending = new ArrayDeque<>();
+      pending.push(this);
+      while (!pending.isEmpty()) {
+        CharSequence piece = pending.pop();
+        if (piece instanceof Rope) {
+          Rope rope = (Rope) piece;
+          if (rope != this && rope.isFlat()) {
+            sb.append(rope.toString());
+          } else {
+            pending.push(rope.right);
+            pending.push(rope.left);
+          }
+        } else {
+          sb.append(piece);
+        }
+      }
+      flat = sb.toString();
+      left = null;
+      right = null;
+    }
+    return flat;
+  }
+
+  private synchronized boolean isFlat() {
+    return flat != null;
+  }
+}
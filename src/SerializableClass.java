@@ -10,6 +10,23 @@ class SerializableClass implements MabelCallable, Serializable {
   private final Map<String, SerializableFunction> methods;
   private final Map<String, Object> defaultFieldValues;
   private final List<String> implementedInterfaces;
+  // Fields the last instance ended up with, so new ones are allocated at size.
+  private transient int fieldCountHint;
+  // Own and inherited methods flattened into one table, built once the
+  // superclass chain is resolved. The initializer and arity are cached with it.
+  private transient volatile Map<String, SerializableFunction> methodTable;
+  private transient SerializableFunction initializer;
+  private transient int initializerArity;
+  // Default fields of the whole hierarchy, laid out once and copied into
+  // every new instance.
+  private transient volatile Shape templateShape;
+  private transient Object[] templateValues;
+  // The interfaces of the program this class was defined in, and which of
+  // them it satisfies by id. The bitset is built once the method table is
+  // final and never changed after it is published.
+  private transient volatile List<SerializableInterface> programInterfaces;
+  private transient volatile BitSet satisfiedInterfaces;
+  private transient Set<String> declaredInterfaces;
 
   SerializableClass(String name, String superclassName,
       Map<String, SerializableFunction> methods,
@@ -40,7 +57,52 @@ class SerializableClass implements MabelCallable, Serializable {
   }
 
   public boolean implementsInterface(String interfaceName) {
-    return implementedInterfaces.contains(interfaceName);
+    Set<String> declared = declaredInterfaces;
+    if (declared == null) {
+      declared = new HashSet<>(implementedInterfaces);
+      declaredInterfaces = declared;
+    }
+    return declared.contains(interfaceName);
+  }
+
+  // Called when the class is defined, with every interface of its program.
+  void link(List<SerializableInterface> interfaces) {
+    programInterfaces = interfaces;
+    satisfiedInterfaces = conformance(interfaces);
+  }
+
+  // Null until the superclass chain is resolved and the methods are final.
+  private BitSet conformance(List<SerializableInterface> interfaces) {
+    if (methodTable() == null) {
+      return null;
+    }
+    BitSet satisfied = new BitSet(interfaces.size());
+    for (int id = 0; id < interfaces.size(); id++) {
+      if (interfaces.get(id).hasAllMethods(this)) {
+        satisfied.set(id);
+      }
+    }
+    return satisfied;
+  }
+
+  // Whether this class has every method the interface requires: a bit test
+  // for interfaces of its own program once the class is linked.
+  boolean satisfies(SerializableInterface iface) {
+    List<SerializableInterface> interfaces = programInterfaces;
+    int id = iface.getId();
+    if (interfaces == null || id < 0 || id >= interfaces.size() || interfaces.get(id) != iface) {
+      return iface.hasAllMethods(this);
+    }
+
+    BitSet satisfied = satisfiedInterfaces;
+    if (satisfied == null) {
+      satisfied = conformance(interfaces);
+      if (satisfied == null) {
+        return iface.hasAllMethods(this);
+      }
+      satisfiedInterfaces = satisfied;
+    }
+    return satisfied.get(id);
   }
 
   public void validateInterfaces(Map<String, Object> globals) {
@@ -48,7 +110,7 @@ class SerializableClass implements MabelCallable, Serializable {
       Object interfaceObj = globals.get(interfaceName);
       if (interfaceObj instanceof SerializableInterface) {
         SerializableInterface iface = (SerializableInterface) interfaceObj;
-        if (!iface.isImplementedBy(this)) {
+        if (!satisfies(iface)) {
           List<String> missing = new ArrayList<>();
           for (String method : iface.getRequiredMethods()) {
             if (findMethod(method) == null) {
@@ -75,7 +137,37 @@ class SerializableClass implements MabelCallable, Serializable {
     }
   }
 
+  private Map<String, SerializableFunction> methodTable() {
+    Map<String, SerializableFunction> table = methodTable;
+    if (table != null) {
+      return table;
+    }
+    if (superclassName != null && superclass == null) {
+      return null;
+    }
+
+    table = new HashMap<>();
+    if (superclass != null) {
+      Map<String, SerializableFunction> inherited = superclass.methodTable();
+      if (inherited == null) {
+        return null;
+      }
+      table.putAll(inherited);
+    }
+    table.putAll(methods);
+
+    initializer = table.get("init");
+    initializerArity = initializer == null ? 0 : initializer.arity();
+    methodTable = table;
+    return table;
+  }
+
   SerializableFunction findMethod(String name) {
+    Map<String, SerializableFunction> table = methodTable();
+    if (table != null) {
+      return table.get(name);
+    }
+
     if (methods.containsKey(name)) {
       return methods.get(name);
     }
@@ -111,37 +203,57 @@ class SerializableClass implements MabelCallable, Serializable {
 
   @Override
   public Object call(VirtualMachine vm, List<Object> arguments) {
-    if (superclassName != null && superclass == null) {
-      resolveSuperclass(vm.getGlobals());
+    SerializableInstance instance = instantiate(vm);
+    SerializableFunction init = findInitializer();
+    if (init != null) {
+      init.callAsMethod(instance, vm, arguments);
+    } else if (arguments.size() != 0) {
+      throw new RuntimeException("Expected 0 arguments but got " + arguments.size() + ".");
     }
 
-    SerializableInstance instance = new SerializableInstance(this);
+    initialized(instance);
+    return instance;
+  }
 
-    for (Map.Entry<String, Object> entry : getAllFieldDefaults().entrySet()) {
-      instance.set(entry.getKey(), entry.getValue());
+  // A new instance with the default fields laid out, before init runs.
+  SerializableInstance instantiate(VirtualMachine vm) {
+    if (superclassName != null && superclass == null) {
+      resolveSuperclass(vm.getGlobals());
     }
 
-    SerializableFunction initializer = findMethod("init");
-    if (initializer != null) {
-      initializer.callAsMethod(instance, vm, arguments);
-    } else if (arguments.size() != 0) {
-      if (superclass != null) {
-        SerializableFunction superInit = superclass.findMethod("init");
-        if (superInit != null) {
-          superInit.callAsMethod(instance, vm, arguments);
-        } else {
-          throw new RuntimeException("Expected 0 arguments but got " + arguments.size() + ".");
-        }
-      } else {
-        throw new RuntimeException("Expected 0 arguments but got " + arguments.size() + ".");
-      }
+    if (templateShape == null) {
+      buildTemplate();
     }
+    return new SerializableInstance(this, templateShape, templateValues);
+  }
 
-    return instance;
+  SerializableFunction findInitializer() {
+    return methodTable() != null ? initializer : findMethod("init");
+  }
+
+  // Called once init has run, so the next instance is allocated at the
+  // size this one grew to.
+  void initialized(SerializableInstance instance) {
+    fieldCountHint = instance.getShape().size();
+  }
+
+  private void buildTemplate() {
+    Shape shape = Shape.EMPTY;
+    List<Object> values = new ArrayList<>();
+    for (Map.Entry<String, Object> entry : getAllFieldDefaults().entrySet()) {
+      shape = shape.with(entry.getKey());
+      values.add(entry.getValue());
+    }
+    templateValues = values.toArray();
+    templateShape = shape;
   }
 
   @Override
   public int arity() {
+    if (methodTable() != null) {
+      return initializerArity;
+    }
+
     SerializableFunction initializer = findMethod("init");
     if (initializer == null && superclass != null) {
       return superclass.arity();
@@ -151,6 +263,10 @@ class SerializableClass implements MabelCallable, Serializable {
     return initializer.arity();
   }
 
+  int getFieldCountHint() {
+    return fieldCountHint;
+  }
+
   public String getName() {
     return name;
   }
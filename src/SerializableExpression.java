@@ -80,6 +80,13 @@ class SerializableExpression implements Serializable {
     return expr;
   }
 
+  // Keys and values alternate in elements.
+  static SerializableExpression map(List<SerializableExpression> entries) {
+    SerializableExpression expr = new SerializableExpression("map");
+    expr.elements = entries;
+    return expr;
+  }
+
   static SerializableExpression index(SerializableExpression object, SerializableExpression index) {
     SerializableExpression expr = new SerializableExpression("index");
     expr.object = object;
@@ -5,16 +5,29 @@ class SerializableInstance implements Serializable {
   private static final long serialVersionUID = 1L;
 
   private final SerializableClass klass;
-  private final Map<String, Object> fields;
+  private Shape shape;
+  private Object[] slots;
 
+  private static final Object[] NO_SLOTS = new Object[0];
+
+  // A fieldless instance, for subclasses that keep their fields elsewhere.
   SerializableInstance(SerializableClass klass) {
     this.klass = klass;
-    this.fields = new HashMap<>();
+    this.shape = Shape.EMPTY;
+    this.slots = NO_SLOTS;
+  }
+
+  // Starts from the class template: its default fields already laid out.
+  SerializableInstance(SerializableClass klass, Shape shape, Object[] values) {
+    this.klass = klass;
+    this.shape = shape;
+    this.slots = Arrays.copyOf(values, Math.max(values.length, klass.getFieldCountHint()));
   }
 
   Object get(String name) {
-    if (fields.containsKey(name)) {
-      return fields.get(name);
+    int index = shape.indexOf(name);
+    if (index >= 0) {
+      return slots[index];
     }
 
     SerializableFunction method = klass.findMethod(name);
@@ -25,8 +38,38 @@ class SerializableInstance implements Serializable {
     throw new RuntimeException("Undefined property '" + name + "'.");
   }
 
+  boolean has(String name) {
+    return shape.indexOf(name) >= 0 || klass.findMethod(name) != null;
+  }
+
   void set(String name, Object value) {
-    fields.put(name, value);
+    int index = shape.indexOf(name);
+    if (index < 0) {
+      shape = shape.with(name);
+      index = shape.size() - 1;
+      if (index >= slots.length) {
+        slots = Arrays.copyOf(slots, shape.size());
+      }
+    }
+    slots[index] = value;
+  }
+
+  SerializableClass getKlass() {
+    return klass;
+  }
+
+  Shape getShape() {
+    return shape;
+  }
+
+  // Direct slot access for the VM's property caches, which have already
+  // matched this instance's shape.
+  Object getSlot(int index) {
+    return slots[index];
+  }
+
+  void setSlot(int index, Object value) {
+    slots[index] = value;
   }
 
   SerializableFunction getSuperMethod(String name) {
@@ -53,6 +96,14 @@ class SerializableInstance implements Serializable {
       this.method = method;
     }
 
+    SerializableInstance getInstance() {
+      return instance;
+    }
+
+    SerializableFunction getMethod() {
+      return method;
+    }
+
     @Override
     public int arity() {
       return method.arity();
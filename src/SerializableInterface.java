@@ -6,12 +6,23 @@ class SerializableInterface implements Serializable {
 
   private final String name;
   private final List<String> requiredMethods;
+  // Position among its program's interfaces, assigned when the program's
+  // chunk is built or loaded.
+  private transient int id = -1;
 
   SerializableInterface(String name, List<String> requiredMethods) {
     this.name = name;
     this.requiredMethods = requiredMethods;
   }
 
+  int getId() {
+    return id;
+  }
+
+  void setId(int id) {
+    this.id = id;
+  }
+
   public String getName() {
     return name;
   }
@@ -21,6 +32,10 @@ class SerializableInterface implements Serializable {
   }
 
   public boolean isImplementedBy(SerializableClass klass) {
+    return klass.satisfies(this);
+  }
+
+  boolean hasAllMethods(SerializableClass klass) {
     for (String method : requiredMethods) {
       if (klass.findMethod(method) == null) {
         return false;
@@ -72,6 +72,22 @@ class SerializableStatement implements Serializable {
     return stmt;
   }
 
+  static SerializableStatement forIn(String name, SerializableExpression iterable, SerializableStatement body) {
+    SerializableStatement stmt = new SerializableStatement("forIn");
+    stmt.name = name;
+    stmt.expression = iterable;
+    stmt.body = body;
+    return stmt;
+  }
+
+  static SerializableStatement breakStmt() {
+    return new SerializableStatement("break");
+  }
+
+  static SerializableStatement continueStmt() {
+    return new SerializableStatement("continue");
+  }
+
   static SerializableStatement block(List<SerializableStatement> statements) {
     SerializableStatement stmt = new SerializableStatement("block");
     stmt.statements = statements;
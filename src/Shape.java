@@ -0,0 +1,74 @@
+import java.io.Serializable;
+import java.util.*;
+
+// The layout of an instance's fields: which name lives at which slot.
+// Shapes are immutable and shared, so every instance that gained the same
+// fields in the same order points at the same Shape and stores only an
+// Object[] of values. Adding a field follows a cached transition to the
+// child shape instead of building a new map.
+class Shape implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final Shape EMPTY = new Shape(new String[0], new HashMap<>());
+
+  private final String[] names;
+  private final Map<String, Integer> indices;
+  private transient Map<String, Shape> transitions;
+  // Most shapes only ever grow one way, so the last transition taken is
+  // checked before locking the table.
+  private transient volatile Transition lastTransition;
+
+  private Shape(String[] names, Map<String, Integer> indices) {
+    this.names = names;
+    this.indices = indices;
+  }
+
+  int indexOf(String name) {
+    Integer index = indices.get(name);
+    return index == null ? -1 : index;
+  }
+
+  int size() {
+    return names.length;
+  }
+
+  String nameAt(int index) {
+    return names[index];
+  }
+
+  Shape with(String name) {
+    Transition last = lastTransition;
+    if (last != null && last.name.equals(name)) {
+      return last.shape;
+    }
+    return transition(name);
+  }
+
+  private synchronized Shape transition(String name) {
+    if (transitions == null) {
+      transitions = new HashMap<>();
+    }
+
+    Shape next = transitions.get(name);
+    if (next == null) {
+      String[] nextNames = Arrays.copyOf(names, names.length + 1);
+      nextNames[names.length] = name;
+      Map<String, Integer> nextIndices = new HashMap<>(indices);
+      nextIndices.put(name, names.length);
+      next = new Shape(nextNames, nextIndices);
+      transitions.put(name, next);
+    }
+    lastTransition = new Transition(name, next);
+    return next;
+  }
+
+  private static class Transition {
+    final String name;
+    final Shape shape;
+
+    Transition(String name, Shape shape) {
+      this.name = name;
+      this.shape = shape;
+    }
+  }
+}
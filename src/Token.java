@@ -1,7 +1,7 @@
 enum TokenType {
     NUMBER, STRING, IDENTIFIER, BOOLEAN,
 
-    LET, IF, ELSE, WHILE, FOR, FUNCTION, RETURN, TRUE, FALSE, PRINT,
+    LET, IF, ELSE, WHILE, FOR, IN, FUNCTION, RETURN, BREAK, CONTINUE, TRUE, FALSE, PRINT,
     CLASS, EXTENDS, INTERFACE, IMPLEMENTS, THIS, SUPER, NEW,
 
     INT, DOUBLE, STRING_TYPE, BOOL, VOID,
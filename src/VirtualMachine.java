@@ -1,41 +1,255 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 class VirtualMachine {
+    static final OpCode[] OPCODES = OpCode.values();
+
+    // Back-edges a top-level loop takes before it is compiled and entered on-stack.
+    // Set -Dmabel.osrThreshold=0 to keep everything in the interpreter.
+    private static final int OSR_THRESHOLD = Integer.getInteger("mabel.osrThreshold", 1000);
+    // -Dmabel.traceOsr=true reports each entry into a compiled loop on stderr.
+    private static final boolean TRACE_OSR = Boolean.getBoolean("mabel.traceOsr");
+
+    // Deepest call chain a program may build. Function calls push frames on
+    // the VM's own call stack rather than the Java stack, so only memory
+    // bounds how high this can be set.
+    private static final int MAX_CALL_DEPTH = Integer.getInteger("mabel.maxCallDepth", 100000);
+
+    // Threads the parallel builtins split their work across.
+    private static final int PARALLELISM = Integer.getInteger("mabel.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    private static ForkJoinPool workers;
+
+    // The VM whose frames the running thread is using. Builtins are shared by
+    // every VM, so callbacks they make look here for the caller's context.
+    private static final ThreadLocal<VirtualMachine> CURRENT = new ThreadLocal<>();
+
+    // The builtins every program starts with, built once and shared by all
+    // VMs; globals fall back to them, so a program's own definitions shadow
+    // them. Host code adds more through MabelBuiltinProvider services.
+    private static final Map<String, MabelBuiltin> BUILTINS = loadBuiltins();
+
+    // Integral numbers in this range are boxed once and shared, so counters,
+    // indices and lengths do not allocate a Double at every step.
+    private static final int SMALL_NUMBER_MIN = -128;
+    private static final int SMALL_NUMBER_MAX = 65536;
+    private static final Double[] SMALL_NUMBERS = new Double[SMALL_NUMBER_MAX - SMALL_NUMBER_MIN];
+
+    // One-character strings, shared so that indexing and iterating a string
+    // does not allocate. Latin-1 is filled in up front, the rest on first use.
+    private static final String[] CHAR_STRINGS = new String[Character.MAX_VALUE + 1];
+
+    static {
+        for (int i = SMALL_NUMBER_MIN; i < SMALL_NUMBER_MAX; i++) {
+            SMALL_NUMBERS[i - SMALL_NUMBER_MIN] = (double) i;
+        }
+        for (char c = 0; c < 256; c++) {
+            CHAR_STRINGS[c] = String.valueOf(c);
+        }
+    }
+
     private final Chunk chunk;
     private int ip = 0;
     private final List<Object> stack = new ArrayList<>();
-    private final Map<String, Object> globals = new HashMap<>();
+    private final Map<String, Object> globals;
+    private final Environment globalScope;
+    private int[] backEdgeCounts;
+    private Map<Integer, CompiledLoop> compiledLoops;
+    private Profile profile;
+    private Frame[] frames = new Frame[16];
+    private int frameCount = 0;
 
     public VirtualMachine(Chunk chunk) {
         this.chunk = chunk;
-        defineBuiltins();
+        this.globals = new Globals();
+        this.globalScope = new Environment(globals);
+    }
+
+    // A context for running callbacks on a worker thread: it shares the
+    // program and reads its globals but has its own frames and stack.
+    private VirtualMachine(VirtualMachine parent) {
+        this.chunk = parent.chunk;
+        this.globals = new WorkerGlobals(parent.globals);
+        this.globalScope = new Environment(globals);
+    }
+
+    private static Map<String, MabelBuiltin> loadBuiltins() {
+        Map<String, MabelBuiltin> builtins = new HashMap<>();
+        defineBuiltins(builtins);
+        for (MabelBuiltinProvider provider : ServiceLoader.load(MabelBuiltinProvider.class)) {
+            for (MabelBuiltin builtin : provider.builtins()) {
+                builtins.put(builtin.name(), builtin);
+            }
+        }
+        return Collections.unmodifiableMap(builtins);
+    }
+
+    // A program's globals: its own definitions over the shared builtins.
+    // Every read, including iteration and size, sees both; writes go to the
+    // definitions only, so a builtin can be shadowed but not replaced.
+    private static final class Globals extends AbstractMap<String, Object> {
+        private final Map<String, Object> defined = new HashMap<>();
+
+        @Override
+        public Object get(Object key) {
+            Object value = defined.get(key);
+            if (value != null || defined.containsKey(key)) {
+                return value;
+            }
+            return BUILTINS.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return defined.containsKey(key) || BUILTINS.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object old = defined.put(key, value);
+            return old != null ? old : BUILTINS.get(key);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return defined.remove(key);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    Iterator<Map.Entry<String, Object>> own = defined.entrySet().iterator();
+                    Iterator<Map.Entry<String, MabelBuiltin>> builtins = BUILTINS.entrySet().iterator();
+                    return new Iterator<Map.Entry<String, Object>>() {
+                        private Map.Entry<String, Object> next;
+
+                        @Override
+                        public boolean hasNext() {
+                            while (next == null && builtins.hasNext()) {
+                                Map.Entry<String, MabelBuiltin> entry = builtins.next();
+                                if (!defined.containsKey(entry.getKey())) {
+                                    next = new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+                                }
+                            }
+                            return own.hasNext() || next != null;
+                        }
+
+                        @Override
+                        public Map.Entry<String, Object> next() {
+                            if (own.hasNext()) {
+                                return own.next();
+                            }
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, Object> entry = next;
+                            next = null;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = defined.size();
+                    for (String name : BUILTINS.keySet()) {
+                        if (!defined.containsKey(name)) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+
+    // The globals as parallel callbacks see them. The program's map is not
+    // synchronized, but nothing writes it while a parallel builtin waits for
+    // its workers, so reads go straight through; a write from a callback is
+    // a runtime error rather than a race.
+    private static final class WorkerGlobals extends AbstractMap<String, Object> {
+        private final Map<String, Object> globals;
+
+        WorkerGlobals(Map<String, Object> globals) {
+            this.globals = globals;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return globals.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return globals.containsKey(key);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return Collections.unmodifiableMap(globals).entrySet();
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            throw new RuntimeException("Cannot assign global '" + key + "' inside a parallel callback.");
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw new RuntimeException("Cannot assign global '" + key + "' inside a parallel callback.");
+        }
     }
 
-    private void defineBuiltins() {
-        globals.put("len", new MabelBuiltin("len", 1) {
+    // The VM running on this thread, for builtins to call back into.
+    static VirtualMachine current() {
+        VirtualMachine vm = CURRENT.get();
+        if (vm == null) {
+            throw new IllegalStateException("No Mabel program is running on this thread.");
+        }
+        return vm;
+    }
+
+    private static void defineBuiltins(Map<String, MabelBuiltin> builtins) {
+        builtins.put("len", new MabelBuiltin("len", 1) {
             @Override
             public Object call(List<Object> args) {
-                Object arg = args.get(0);
-                if (arg instanceof String) {
-                    return (double) ((String) arg).length();
+                return call1(args.get(0));
+            }
+
+            @Override
+            public Object call1(Object arg) {
+                if (Rope.isString(arg)) {
+                    return number(((CharSequence) arg).length());
                 } else if (arg instanceof List) {
-                    return (double) ((List<?>) arg).size();
+                    return number(((List<?>) arg).size());
+                } else if (arg instanceof MabelMap) {
+                    return number(((MabelMap) arg).size());
+                } else if (arg instanceof MabelSet) {
+                    return number(((MabelSet) arg).size());
                 }
-                throw new RuntimeException("'len' can only be applied to strings and arrays");
+                throw new RuntimeException("'len' can only be applied to strings, arrays, maps and sets");
             }
         });
 
-        globals.put("str", new MabelBuiltin("str", 1) {
+        builtins.put("str", new MabelBuiltin("str", 1) {
             @Override
             public Object call(List<Object> args) {
-                return stringify(args.get(0));
+                return call1(args.get(0));
+            }
+
+            @Override
+            public Object call1(Object arg) {
+                return stringify(arg);
             }
         });
 
-        globals.put("num", new MabelBuiltin("num", 1) {
+        builtins.put("num", new MabelBuiltin("num", 1) {
             @Override
             public Object call(List<Object> args) {
-                Object arg = args.get(0);
+                Object arg = Rope.flatten(args.get(0));
                 if (arg instanceof String) {
                     try {
                         return Double.parseDouble((String) arg);
@@ -49,11 +263,115 @@ class VirtualMachine {
             }
         });
 
-        globals.put("push", new MabelBuiltin("push", 2) {
+        builtins.put("split", new MabelBuiltin("split", 2) {
             @Override
             public Object call(List<Object> args) {
-                Object arr = args.get(0);
-                Object item = args.get(1);
+                String str = stringArgument(args.get(0), "split");
+                String separator = stringArgument(args.get(1), "split");
+
+                MabelArray parts = new MabelArray();
+                if (separator.isEmpty()) {
+                    for (int i = 0; i < str.length(); i++) {
+                        parts.add(charString(str.charAt(i)));
+                    }
+                    return parts;
+                }
+                int start = 0;
+                for (int at = str.indexOf(separator); at >= 0; at = str.indexOf(separator, start)) {
+                    parts.add(str.substring(start, at));
+                    start = at + separator.length();
+                }
+                parts.add(str.substring(start));
+                return parts;
+            }
+        });
+
+        builtins.put("join", new MabelBuiltin("join", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                List<?> list = arrayArgument(args.get(0), "join");
+                String separator = stringArgument(args.get(1), "join");
+
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < list.size(); i++) {
+                    if (i > 0) {
+                        sb.append(separator);
+                    }
+                    Object element = list.get(i);
+                    sb.append(Rope.isString(element) ? element.toString() : stringify(element));
+                }
+                return sb.toString();
+            }
+        });
+
+        builtins.put("substring", new MabelBuiltin("substring", 2, 3) {
+            @Override
+            public Object call(List<Object> args) {
+                String str = stringArgument(args.get(0), "substring");
+                int length = str.length();
+                int start = stringIndex(args.get(1), length, "substring");
+                int end = args.size() > 2 ? stringIndex(args.get(2), length, "substring") : length;
+                return start < end ? str.substring(start, end) : "";
+            }
+        });
+
+        builtins.put("find", new MabelBuiltin("find", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                String str = stringArgument(args.get(0), "find");
+                String target = stringArgument(args.get(1), "find");
+                return (double) str.indexOf(target);
+            }
+        });
+
+        builtins.put("replace", new MabelBuiltin("replace", 3) {
+            @Override
+            public Object call(List<Object> args) {
+                String str = stringArgument(args.get(0), "replace");
+                String target = stringArgument(args.get(1), "replace");
+                String replacement = stringArgument(args.get(2), "replace");
+                return str.replace(target, replacement);
+            }
+        });
+
+        builtins.put("trim", new MabelBuiltin("trim", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                return stringArgument(args.get(0), "trim").strip();
+            }
+        });
+
+        builtins.put("upper", new MabelBuiltin("upper", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                return stringArgument(args.get(0), "upper").toUpperCase(Locale.ROOT);
+            }
+        });
+
+        builtins.put("lower", new MabelBuiltin("lower", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                return stringArgument(args.get(0), "lower").toLowerCase(Locale.ROOT);
+            }
+        });
+
+        builtins.put("startsWith", new MabelBuiltin("startsWith", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                String str = stringArgument(args.get(0), "startsWith");
+                String prefix = stringArgument(args.get(1), "startsWith");
+                return str.startsWith(prefix);
+            }
+        });
+
+        builtins.put("push", new MabelBuiltin("push", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                return call2(args.get(0), args.get(1));
+            }
+
+            @Override
+            public Object call2(Object arr, Object item) {
                 if (!(arr instanceof List)) {
                     throw new RuntimeException("'push' can only be applied to arrays");
                 }
@@ -64,10 +382,14 @@ class VirtualMachine {
             }
         });
 
-        globals.put("pop", new MabelBuiltin("pop", 1) {
+        builtins.put("pop", new MabelBuiltin("pop", 1) {
             @Override
             public Object call(List<Object> args) {
-                Object arr = args.get(0);
+                return call1(args.get(0));
+            }
+
+            @Override
+            public Object call1(Object arr) {
                 if (!(arr instanceof List)) {
                     throw new RuntimeException("'pop' can only be applied to arrays");
                 }
@@ -80,7 +402,7 @@ class VirtualMachine {
             }
         });
 
-        globals.put("shift", new MabelBuiltin("shift", 1) {
+        builtins.put("shift", new MabelBuiltin("shift", 1) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -96,7 +418,7 @@ class VirtualMachine {
             }
         });
 
-        globals.put("unshift", new MabelBuiltin("unshift", 2) {
+        builtins.put("unshift", new MabelBuiltin("unshift", 2) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -111,7 +433,7 @@ class VirtualMachine {
             }
         });
 
-        globals.put("slice", new MabelBuiltin("slice", 3) {
+        builtins.put("slice", new MabelBuiltin("slice", 3) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -142,14 +464,20 @@ class VirtualMachine {
                 end = Math.max(0, Math.min(end, list.size()));
 
                 if (start > end) {
-                    return new ArrayList<>();
+                    return new MabelArray();
                 }
 
-                return new ArrayList<>(list.subList(start, end));
+                if (list instanceof MabelArray) {
+                    return ((MabelArray) list).slice(start, end);
+                }
+                if (list instanceof RecordArray) {
+                    return ((RecordArray) list).copy(start, end);
+                }
+                return new MabelArray(list.subList(start, end));
             }
         });
 
-        globals.put("indexOf", new MabelBuiltin("indexOf", 2) {
+        builtins.put("indexOf", new MabelBuiltin("indexOf", 2) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -166,7 +494,7 @@ class VirtualMachine {
             }
         });
 
-        globals.put("contains", new MabelBuiltin("contains", 2) {
+        builtins.put("contains", new MabelBuiltin("contains", 2) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -182,7 +510,7 @@ class VirtualMachine {
             }
         });
 
-        globals.put("reverse", new MabelBuiltin("reverse", 1) {
+        builtins.put("reverse", new MabelBuiltin("reverse", 1) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -193,12 +521,16 @@ class VirtualMachine {
 
                 @SuppressWarnings("unchecked")
                 List<Object> list = (List<Object>) arr;
-                Collections.reverse(list);
+                if (list instanceof RecordArray) {
+                    ((RecordArray) list).reverse();
+                } else {
+                    Collections.reverse(list);
+                }
                 return list;
             }
         });
 
-        globals.put("sort", new MabelBuiltin("sort", 1) {
+        builtins.put("sort", new MabelBuiltin("sort", 1, 2) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -210,25 +542,74 @@ class VirtualMachine {
                 @SuppressWarnings("unchecked")
                 List<Object> list = (List<Object>) arr;
 
-                list.sort((a, b) -> {
-                    if (a instanceof Double && b instanceof Double) {
-                        return Double.compare((Double) a, (Double) b);
-                    } else if (a instanceof String && b instanceof String) {
-                        return ((String) a).compareTo((String) b);
-                    } else {
-                        if (a instanceof Double && b instanceof String)
-                            return -1;
-                        if (a instanceof String && b instanceof Double)
-                            return 1;
-                        return 0;
+                if (args.size() > 1) {
+                    list.sort(callbackComparator(args.get(1), "sort"));
+                    return list;
+                }
+
+                if (list instanceof MabelArray && ((MabelArray) list).isNumeric()) {
+                    list.sort(null);
+                    return list;
+                }
+
+                list.sort(VALUE_ORDER);
+
+                return list;
+            }
+        });
+
+        builtins.put("sortBy", new MabelBuiltin("sortBy", 2) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object call(List<Object> args) {
+                List<Object> list = (List<Object>) arrayArgument(args.get(0), "sortBy");
+                Object function = args.get(1);
+                if (callbackArity(function, "sortBy") != 1) {
+                    throw new RuntimeException("'sortBy' callback must take 1 argument");
+                }
+
+                // Each key is computed once, then the positions are sorted by key.
+                Object[] elements = list.toArray();
+                Object[] keys = new Object[elements.length];
+                Object[] frame = new Object[1];
+                List<Object> callArgs = Arrays.asList(frame);
+                boolean numeric = true;
+                for (int i = 0; i < elements.length; i++) {
+                    frame[0] = elements[i];
+                    keys[i] = invoke(function, callArgs);
+                    numeric &= keys[i] instanceof Double;
+                }
+
+                Integer[] order = new Integer[elements.length];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                if (numeric) {
+                    double[] numbers = new double[keys.length];
+                    for (int i = 0; i < keys.length; i++) {
+                        numbers[i] = (Double) keys[i];
                     }
-                });
+                    Arrays.sort(order, (a, b) -> Double.compare(numbers[a], numbers[b]));
+                } else {
+                    Arrays.sort(order, (a, b) -> VALUE_ORDER.compare(keys[a], keys[b]));
+                }
 
+                int[] positions = new int[order.length];
+                for (int i = 0; i < order.length; i++) {
+                    positions[i] = order[i];
+                }
+                if (list instanceof RecordArray) {
+                    ((RecordArray) list).permute(positions);
+                } else {
+                    for (int i = 0; i < positions.length; i++) {
+                        list.set(i, elements[positions[i]]);
+                    }
+                }
                 return list;
             }
         });
 
-        globals.put("clear", new MabelBuiltin("clear", 1) {
+        builtins.put("clear", new MabelBuiltin("clear", 1) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -244,7 +625,7 @@ class VirtualMachine {
             }
         });
 
-        globals.put("copy", new MabelBuiltin("copy", 1) {
+        builtins.put("copy", new MabelBuiltin("copy", 1) {
             @Override
             public Object call(List<Object> args) {
                 Object arr = args.get(0);
@@ -255,503 +636,1331 @@ class VirtualMachine {
 
                 @SuppressWarnings("unchecked")
                 List<Object> list = (List<Object>) arr;
-                return new ArrayList<>(list);
+                if (list instanceof RecordArray) {
+                    return ((RecordArray) list).copy(0, list.size());
+                }
+                return new MabelArray(list);
             }
         });
 
-        globals.put("hasMethod", new MabelBuiltin("hasMethod", 2) {
+        builtins.put("keys", new MabelBuiltin("keys", 1) {
             @Override
             public Object call(List<Object> args) {
-                Object obj = args.get(0);
-                Object methodName = args.get(1);
+                Object map = args.get(0);
+                if (!(map instanceof MabelMap)) {
+                    throw new RuntimeException("'keys' can only be applied to maps");
+                }
+                return ((MabelMap) map).keys();
+            }
+        });
 
-                if (!(methodName instanceof String)) {
-                    throw new RuntimeException("Method name must be a string");
+        builtins.put("values", new MabelBuiltin("values", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                Object collection = args.get(0);
+                if (collection instanceof MabelMap) {
+                    return ((MabelMap) collection).values();
+                } else if (collection instanceof MabelSet) {
+                    return ((MabelSet) collection).values();
                 }
+                throw new RuntimeException("'values' can only be applied to maps and sets");
+            }
+        });
 
-                String method = (String) methodName;
+        builtins.put("has", new MabelBuiltin("has", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                return call2(args.get(0), args.get(1));
+            }
 
-                if (obj instanceof SerializableInstance) {
-                    try {
-                        ((SerializableInstance) obj).get(method);
-                        return true;
-                    } catch (RuntimeException e) {
-                        return false;
-                    }
-                } else if (obj instanceof MabelInstance) {
-                    try {
-                        ((MabelInstance) obj).get(new Token(TokenType.IDENTIFIER, method, null, 0));
-                        return true;
-                    } catch (RuntimeException e) {
-                        return false;
-                    }
+            @Override
+            public Object call2(Object collection, Object key) {
+                if (collection instanceof MabelMap) {
+                    return ((MabelMap) collection).containsKey(key);
+                } else if (collection instanceof MabelSet) {
+                    return ((MabelSet) collection).contains(key);
                 }
+                throw new RuntimeException("'has' can only be applied to maps and sets");
+            }
+        });
 
-                return false;
+        builtins.put("remove", new MabelBuiltin("remove", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object map = args.get(0);
+                if (!(map instanceof MabelMap)) {
+                    throw new RuntimeException("'remove' can only be applied to maps");
+                }
+                return ((MabelMap) map).remove(args.get(1));
             }
         });
 
-        globals.put("requireMethods", new MabelBuiltin("requireMethods", 2) {
+        builtins.put("map", new MabelBuiltin("map", 2) {
             @Override
             public Object call(List<Object> args) {
-                Object obj = args.get(0);
-                Object methodList = args.get(1);
+                List<?> list = arrayArgument(args.get(0), "map");
+                Object function = args.get(1);
+                Object[] frame = callbackFrame(function, "map");
+                List<Object> callArgs = Arrays.asList(frame);
+
+                int count = list.size();
+                Object[] results = new Object[count];
+                for (int i = 0; i < count && i < list.size(); i++) {
+                    setCallbackArguments(frame, list.get(i), i);
+                    results[i] = invoke(function, callArgs);
+                }
+                return MabelArray.of(results, Math.min(count, list.size()));
+            }
+        });
 
-                if (!(methodList instanceof List)) {
-                    throw new RuntimeException("Second argument must be an array of method names");
+        builtins.put("filter", new MabelBuiltin("filter", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                List<?> list = arrayArgument(args.get(0), "filter");
+                Object function = args.get(1);
+                Object[] frame = callbackFrame(function, "filter");
+                List<Object> callArgs = Arrays.asList(frame);
+
+                Object[] results = new Object[list.size()];
+                int kept = 0;
+                for (int i = 0; i < results.length && i < list.size(); i++) {
+                    Object element = list.get(i);
+                    setCallbackArguments(frame, element, i);
+                    if (isTruthy(invoke(function, callArgs))) {
+                        results[kept++] = element;
+                    }
                 }
+                return MabelArray.of(results, kept);
+            }
+        });
 
-                @SuppressWarnings("unchecked")
-                List<Object> methods = (List<Object>) methodList;
-                List<String> missing = new ArrayList<>();
+        builtins.put("reduce", new MabelBuiltin("reduce", 3) {
+            @Override
+            public Object call(List<Object> args) {
+                List<?> list = arrayArgument(args.get(0), "reduce");
+                Object function = args.get(1);
+                if (callbackArity(function, "reduce") != 2) {
+                    throw new RuntimeException("'reduce' callback must take 2 arguments");
+                }
+                Object[] frame = new Object[2];
+                List<Object> callArgs = Arrays.asList(frame);
+
+                Object accumulator = args.get(2);
+                for (int i = 0; i < list.size(); i++) {
+                    frame[0] = accumulator;
+                    frame[1] = list.get(i);
+                    accumulator = invoke(function, callArgs);
+                }
+                return accumulator;
+            }
+        });
 
-                for (Object methodObj : methods) {
-                    if (!(methodObj instanceof String)) {
-                        throw new RuntimeException("Method names must be strings");
-                    }
+        builtins.put("forEach", new MabelBuiltin("forEach", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                List<?> list = arrayArgument(args.get(0), "forEach");
+                Object function = args.get(1);
+                Object[] frame = callbackFrame(function, "forEach");
+                List<Object> callArgs = Arrays.asList(frame);
+
+                for (int i = 0; i < list.size(); i++) {
+                    setCallbackArguments(frame, list.get(i), i);
+                    invoke(function, callArgs);
+                }
+                return null;
+            }
+        });
 
-                    String method = (String) methodObj;
-                    boolean hasIt = false;
+        builtins.put("parallelMap", new MabelBuiltin("parallelMap", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                List<?> list = arrayArgument(args.get(0), "parallelMap");
+                Object function = args.get(1);
+                int arity = callbackFrame(function, "parallelMap").length;
+
+                Object[] results = new Object[list.size()];
+                runInParallel(results.length, (chunk, start, end) -> {
+                    Object[] frame = new Object[arity];
+                    List<Object> callArgs = Arrays.asList(frame);
+                    for (int i = start; i < end; i++) {
+                        setCallbackArguments(frame, list.get(i), i);
+                        results[i] = invoke(function, callArgs);
+                    }
+                });
+                return MabelArray.of(results, results.length);
+            }
+        });
 
-                    if (obj instanceof SerializableInstance) {
-                        try {
-                            ((SerializableInstance) obj).get(method);
-                            hasIt = true;
-                        } catch (RuntimeException e) {
-                        }
-                    } else if (obj instanceof MabelInstance) {
-                        try {
-                            ((MabelInstance) obj).get(new Token(TokenType.IDENTIFIER, method, null, 0));
-                            hasIt = true;
-                        } catch (RuntimeException e) {
-                        }
+        builtins.put("parallelFilter", new MabelBuiltin("parallelFilter", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                List<?> list = arrayArgument(args.get(0), "parallelFilter");
+                Object function = args.get(1);
+                int arity = callbackFrame(function, "parallelFilter").length;
+
+                Object[] elements = list.toArray();
+                boolean[] keep = new boolean[elements.length];
+                runInParallel(elements.length, (chunk, start, end) -> {
+                    Object[] frame = new Object[arity];
+                    List<Object> callArgs = Arrays.asList(frame);
+                    for (int i = start; i < end; i++) {
+                        setCallbackArguments(frame, elements[i], i);
+                        keep[i] = isTruthy(invoke(function, callArgs));
                     }
+                });
 
-                    if (!hasIt) {
-                        missing.add(method);
+                int kept = 0;
+                for (int i = 0; i < elements.length; i++) {
+                    if (keep[i]) {
+                        elements[kept++] = elements[i];
                     }
                 }
+                return MabelArray.of(elements, kept);
+            }
+        });
 
-                if (!missing.isEmpty()) {
-                    throw new RuntimeException("Object missing required methods: " + String.join(", ", missing));
+        builtins.put("parallelReduce", new MabelBuiltin("parallelReduce", 3) {
+            @Override
+            public Object call(List<Object> args) {
+                List<?> list = arrayArgument(args.get(0), "parallelReduce");
+                Object function = args.get(1);
+                if (callbackArity(function, "parallelReduce") != 2) {
+                    throw new RuntimeException("'parallelReduce' callback must take 2 arguments");
+                }
+                Object identity = args.get(2);
+                int count = list.size();
+                if (count == 0) {
+                    return identity;
                 }
 
-                return true;
+                // Each chunk folds from the identity; the chunk results are
+                // then folded in order, so the callback must be associative.
+                Object[] partials = new Object[chunkCount(count)];
+                runInParallel(count, (chunk, start, end) -> {
+                    Object[] frame = new Object[2];
+                    List<Object> callArgs = Arrays.asList(frame);
+                    Object accumulator = identity;
+                    for (int i = start; i < end; i++) {
+                        frame[0] = accumulator;
+                        frame[1] = list.get(i);
+                        accumulator = invoke(function, callArgs);
+                    }
+                    partials[chunk] = accumulator;
+                });
+
+                Object[] frame = new Object[2];
+                List<Object> callArgs = Arrays.asList(frame);
+                Object accumulator = partials[0];
+                for (int i = 1; i < partials.length; i++) {
+                    frame[0] = accumulator;
+                    frame[1] = partials[i];
+                    accumulator = invoke(function, callArgs);
+                }
+                return accumulator;
             }
         });
 
-        globals.put("getMethods", new MabelBuiltin("getMethods", 1) {
+        builtins.put("parallelSort", new MabelBuiltin("parallelSort", 1) {
             @Override
+            @SuppressWarnings("unchecked")
             public Object call(List<Object> args) {
-                Object obj = args.get(0);
-                List<Object> methodNames = new ArrayList<>();
-
-                if (obj instanceof SerializableInstance) {
-                    SerializableInstance instance = (SerializableInstance) obj;
-                    return methodNames;
-                } else if (obj instanceof SerializableClass) {
-                    return methodNames;
+                List<Object> list = (List<Object>) arrayArgument(args.get(0), "parallelSort");
+                if (list instanceof MabelArray) {
+                    MabelArray array = (MabelArray) list;
+                    array.parallelSort(array.isNumeric() ? null : VALUE_ORDER);
+                } else {
+                    list.sort(VALUE_ORDER);
                 }
+                return list;
+            }
+        });
 
-                return methodNames;
+        builtins.put("sum", new MabelBuiltin("sum", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                double[] numbers = numbersArgument(args.get(0), "sum");
+                return ArrayMath.sum(numbers, ((List<?>) args.get(0)).size());
             }
         });
-    }
 
-    public void run() {
-        while (ip < chunk.size()) {
-            byte instruction = chunk.get(ip++);
-            OpCode op = OpCode.values()[instruction];
+        builtins.put("mean", new MabelBuiltin("mean", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                double[] numbers = numbersArgument(args.get(0), "mean");
+                int n = ((List<?>) args.get(0)).size();
+                return n == 0 ? null : (Object) (ArrayMath.sum(numbers, n) / n);
+            }
+        });
 
-            switch (op) {
-                case CONSTANT:
-                    Object constant = chunk.getConstant(Byte.toUnsignedInt(chunk.get(ip++)));
-                    // System.out.println("DEBUG: Loading constant: " + constant + " (type: " +
-                    // (constant == null ? "null" : constant.getClass().getSimpleName()) + ")");
-                    push(constant);
-                    break;
+        builtins.put("variance", new MabelBuiltin("variance", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                double[] numbers = numbersArgument(args.get(0), "variance");
+                int n = ((List<?>) args.get(0)).size();
+                return n == 0 ? null : (Object) ArrayMath.variance(numbers, n);
+            }
+        });
 
-                case NIL:
-                    push(null);
-                    break;
+        builtins.put("min", new MabelBuiltin("min", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                double[] numbers = numbersArgument(args.get(0), "min");
+                int n = ((List<?>) args.get(0)).size();
+                return n == 0 ? null : (Object) ArrayMath.min(numbers, n);
+            }
+        });
 
-                case TRUE:
-                    push(true);
-                    break;
+        builtins.put("max", new MabelBuiltin("max", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                double[] numbers = numbersArgument(args.get(0), "max");
+                int n = ((List<?>) args.get(0)).size();
+                return n == 0 ? null : (Object) ArrayMath.max(numbers, n);
+            }
+        });
 
-                case FALSE:
-                    push(false);
-                    break;
+        builtins.put("dot", new MabelBuiltin("dot", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                int n = sameLength(args.get(0), args.get(1), "dot");
+                return ArrayMath.dot(numbersArgument(args.get(0), "dot"), numbersArgument(args.get(1), "dot"), n);
+            }
+        });
 
-                case POP:
-                    pop();
-                    break;
+        builtins.put("mul", new MabelBuiltin("mul", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                int n = sameLength(args.get(0), args.get(1), "mul");
+                return MabelArray.ofNumbers(ArrayMath.mul(
+                        numbersArgument(args.get(0), "mul"), numbersArgument(args.get(1), "mul"), n));
+            }
+        });
+
+        builtins.put("scale", new MabelBuiltin("scale", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                double[] numbers = numbersArgument(args.get(0), "scale");
+                if (!(args.get(1) instanceof Double)) {
+                    throw new RuntimeException("'scale' factor must be a number");
+                }
+                int n = ((List<?>) args.get(0)).size();
+                return MabelArray.ofNumbers(ArrayMath.scale(numbers, (Double) args.get(1), n));
+            }
+        });
+
+        builtins.put("axpy", new MabelBuiltin("axpy", 3) {
+            @Override
+            public Object call(List<Object> args) {
+                if (!(args.get(0) instanceof Double)) {
+                    throw new RuntimeException("'axpy' factor must be a number");
+                }
+                int n = sameLength(args.get(1), args.get(2), "axpy");
+                return MabelArray.ofNumbers(ArrayMath.axpy((Double) args.get(0),
+                        numbersArgument(args.get(1), "axpy"), numbersArgument(args.get(2), "axpy"), n));
+            }
+        });
+
+        builtins.put("set", new MabelBuiltin("set", 0) {
+            @Override
+            public Object call(List<Object> args) {
+                return new MabelSet();
+            }
+        });
+
+        builtins.put("add", new MabelBuiltin("add", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object set = args.get(0);
+                if (set instanceof List && args.get(1) instanceof List) {
+                    int n = sameLength(set, args.get(1), "add");
+                    return MabelArray.ofNumbers(ArrayMath.add(
+                            numbersArgument(set, "add"), numbersArgument(args.get(1), "add"), n));
+                }
+                if (!(set instanceof MabelSet)) {
+                    throw new RuntimeException("'add' can only be applied to sets or arrays of numbers");
+                }
+                return ((MabelSet) set).add(args.get(1));
+            }
+        });
+
+        builtins.put("delete", new MabelBuiltin("delete", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object set = args.get(0);
+                if (!(set instanceof MabelSet)) {
+                    throw new RuntimeException("'delete' can only be applied to sets");
+                }
+                return ((MabelSet) set).delete(args.get(1));
+            }
+        });
+
+        builtins.put("union", new MabelBuiltin("union", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                if (!(args.get(0) instanceof MabelSet) || !(args.get(1) instanceof MabelSet)) {
+                    throw new RuntimeException("'union' can only be applied to sets");
+                }
+                return ((MabelSet) args.get(0)).union((MabelSet) args.get(1));
+            }
+        });
+
+        builtins.put("intersect", new MabelBuiltin("intersect", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                if (!(args.get(0) instanceof MabelSet) || !(args.get(1) instanceof MabelSet)) {
+                    throw new RuntimeException("'intersect' can only be applied to sets");
+                }
+                return ((MabelSet) args.get(0)).intersect((MabelSet) args.get(1));
+            }
+        });
+
+        builtins.put("hasMethod", new MabelBuiltin("hasMethod", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object obj = args.get(0);
+                Object methodName = Rope.flatten(args.get(1));
+
+                if (!(methodName instanceof String)) {
+                    throw new RuntimeException("Method name must be a string");
+                }
 
-                case GET_GLOBAL: {
-                    String name = (String) chunk.getConstant(Byte.toUnsignedInt(chunk.get(ip++)));
-                    Object value = globals.get(name);
-                    if (value == null) {
-                        throw new RuntimeException("Undefined variable '" + name + "'.");
+                String method = (String) methodName;
+
+                if (obj instanceof SerializableInstance) {
+                    return ((SerializableInstance) obj).has(method);
+                } else if (obj instanceof MabelInstance) {
+                    try {
+                        ((MabelInstance) obj).get(new Token(TokenType.IDENTIFIER, method, null, 0));
+                        return true;
+                    } catch (RuntimeException e) {
+                        return false;
                     }
-                    push(value);
-                    break;
                 }
 
-                case DEFINE_GLOBAL: {
-                    String name = (String) chunk.getConstant(Byte.toUnsignedInt(chunk.get(ip++)));
-                    Object value = peek();
-                    // System.out.println("DEBUG: Defining global '" + name + "' = " + value +
-                    // " (type: " + (value == null ? "null" : value.getClass().getSimpleName()) +
-                    // ")");
-                    globals.put(name, value);
-                    pop();
-                    break;
+                return false;
+            }
+        });
+
+        builtins.put("requireMethods", new MabelBuiltin("requireMethods", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object obj = args.get(0);
+                Object methodList = args.get(1);
+
+                if (!(methodList instanceof List)) {
+                    throw new RuntimeException("Second argument must be an array of method names");
                 }
 
-                case SET_GLOBAL: {
-                    String name = (String) chunk.getConstant(Byte.toUnsignedInt(chunk.get(ip++)));
-                    if (!globals.containsKey(name)) {
-                        throw new RuntimeException("Undefined variable '" + name + "'.");
+                @SuppressWarnings("unchecked")
+                List<Object> methods = (List<Object>) methodList;
+                List<String> missing = new ArrayList<>();
+
+                for (Object element : methods) {
+                    Object methodObj = Rope.flatten(element);
+                    if (!(methodObj instanceof String)) {
+                        throw new RuntimeException("Method names must be strings");
+                    }
+
+                    String method = (String) methodObj;
+                    boolean hasIt = false;
+
+                    if (obj instanceof SerializableInstance) {
+                        hasIt = ((SerializableInstance) obj).has(method);
+                    } else if (obj instanceof MabelInstance) {
+                        try {
+                            ((MabelInstance) obj).get(new Token(TokenType.IDENTIFIER, method, null, 0));
+                            hasIt = true;
+                        } catch (RuntimeException e) {
+                        }
+                    }
+
+                    if (!hasIt) {
+                        missing.add(method);
                     }
-                    globals.put(name, peek());
+                }
+
+                if (!missing.isEmpty()) {
+                    throw new RuntimeException("Object missing required methods: " + String.join(", ", missing));
+                }
+
+                return true;
+            }
+        });
+
+        builtins.put("getMethods", new MabelBuiltin("getMethods", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                Object obj = args.get(0);
+                List<Object> methodNames = new ArrayList<>();
+
+                if (obj instanceof SerializableInstance) {
+                    SerializableInstance instance = (SerializableInstance) obj;
+                    return methodNames;
+                } else if (obj instanceof SerializableClass) {
+                    return methodNames;
+                }
+
+                return methodNames;
+            }
+        });
+
+        builtins.put("implementsInterface", new MabelBuiltin("implementsInterface", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object obj = args.get(0);
+                Object iface = args.get(1);
+
+                if (!(iface instanceof SerializableInterface)) {
+                    throw new RuntimeException("Second argument must be an interface");
+                }
+
+                SerializableClass klass = null;
+                if (obj instanceof SerializableInstance) {
+                    klass = ((SerializableInstance) obj).getKlass();
+                } else if (obj instanceof SerializableClass) {
+                    klass = (SerializableClass) obj;
+                }
+
+                return klass != null && klass.satisfies((SerializableInterface) iface);
+            }
+        });
+
+        builtins.put("records", new MabelBuiltin("records", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object klass = args.get(0);
+                Object count = args.get(1);
+
+                if (!(klass instanceof SerializableClass)) {
+                    throw new RuntimeException("'records' can only be applied to classes");
+                }
+                if (!(count instanceof Double) || (Double) count < 0) {
+                    throw new RuntimeException("Record count must be a non-negative number");
+                }
+
+                return new RecordArray((SerializableClass) klass, ((Double) count).intValue());
+            }
+        });
+
+        builtins.put("memoize", new MabelBuiltin("memoize", 2) {
+            @Override
+            public Object call(List<Object> args) {
+                Object function = args.get(0);
+                Object maxEntries = args.get(1);
+
+                if (!(function instanceof MabelCallable)) {
+                    throw new RuntimeException("'memoize' can only be applied to functions");
+                }
+                if (!(maxEntries instanceof Double) || (Double) maxEntries < 1) {
+                    throw new RuntimeException("Cache size must be a positive number");
+                }
+
+                return new MemoizedFunction((MabelCallable) function, ((Double) maxEntries).intValue());
+            }
+        });
+
+        builtins.put("memoStats", new MabelBuiltin("memoStats", 1) {
+            @Override
+            public Object call(List<Object> args) {
+                Object function = args.get(0);
+
+                if (!(function instanceof MemoizedFunction)) {
+                    throw new RuntimeException("'memoStats' can only be applied to memoized functions");
+                }
+
+                return ((MemoizedFunction) function).stats();
+            }
+        });
+    }
+
+    // The order sort uses: numbers before strings, each in natural order.
+    static final Comparator<Object> VALUE_ORDER = (x, y) -> {
+        Object a = Rope.flatten(x);
+        Object b = Rope.flatten(y);
+        if (a instanceof Double && b instanceof Double) {
+            return Double.compare((Double) a, (Double) b);
+        } else if (a instanceof String && b instanceof String) {
+            return ((String) a).compareTo((String) b);
+        } else {
+            if (a instanceof Double && b instanceof String)
+                return -1;
+            if (a instanceof String && b instanceof Double)
+                return 1;
+            return 0;
+        }
+    };
+
+    // Orders values by a Mabel comparator: a negative result puts the first
+    // argument first, a positive one the second.
+    private static Comparator<Object> callbackComparator(Object function, String builtin) {
+        if (callbackArity(function, builtin) != 2) {
+            throw new RuntimeException("'" + builtin + "' comparator must take 2 arguments");
+        }
+        Object[] frame = new Object[2];
+        List<Object> callArgs = Arrays.asList(frame);
+        return (a, b) -> {
+            frame[0] = a;
+            frame[1] = b;
+            Object result = invoke(function, callArgs);
+            if (!(result instanceof Double)) {
+                throw new RuntimeException("'" + builtin + "' comparator must return a number");
+            }
+            double order = (Double) result;
+            return order < 0 ? -1 : order > 0 ? 1 : 0;
+        };
+    }
+
+    // The boxed form of a number result; small integers come from the shared
+    // cache. -0.0 is left alone so that it keeps its sign.
+    static Double number(double value) {
+        int i = (int) value;
+        if (i == value && i >= SMALL_NUMBER_MIN && i < SMALL_NUMBER_MAX
+                && (i != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+            return SMALL_NUMBERS[i - SMALL_NUMBER_MIN];
+        }
+        return value;
+    }
+
+    static String charString(char c) {
+        String s = CHAR_STRINGS[c];
+        if (s == null) {
+            s = String.valueOf(c);
+            CHAR_STRINGS[c] = s;
+        }
+        return s;
+    }
+
+    // The state of a for-in loop: a position in a string or array. It sits on
+    // the operand stack under the loop body, and strings are walked by char.
+    static final class Cursor {
+        private final String string;
+        private final List<?> list;
+        private int position;
+
+        private Cursor(String string, List<?> list) {
+            this.string = string;
+            this.list = list;
+        }
+
+        boolean hasNext() {
+            return position < (string != null ? string.length() : list.size());
+        }
+
+        Object next() {
+            return string != null ? charString(string.charAt(position++)) : list.get(position++);
+        }
+    }
+
+    // Strings yield their characters, arrays their elements, maps their keys
+    // and sets their values.
+    static Cursor iterate(Object iterable) {
+        if (Rope.isString(iterable)) {
+            return new Cursor(iterable.toString(), null);
+        } else if (iterable instanceof List) {
+            return new Cursor(null, (List<?>) iterable);
+        } else if (iterable instanceof MabelMap) {
+            return new Cursor(null, ((MabelMap) iterable).keys());
+        } else if (iterable instanceof MabelSet) {
+            return new Cursor(null, ((MabelSet) iterable).values());
+        }
+        throw new RuntimeException("Can only iterate over strings, arrays, maps and sets.");
+    }
+
+    // Pushes the loop variable's next value, or returns false once the cursor
+    // on top of the stack is exhausted.
+    boolean forNext() {
+        Cursor cursor = (Cursor) peek();
+        if (!cursor.hasNext()) {
+            return false;
+        }
+        push(cursor.next());
+        return true;
+    }
+
+    private static String stringArgument(Object value, String builtin) {
+        if (!Rope.isString(value)) {
+            throw new RuntimeException("'" + builtin + "' can only be applied to strings");
+        }
+        return value.toString();
+    }
+
+    // A string position as slice takes it: negative counts from the end, and
+    // anything past either end is clamped.
+    private static int stringIndex(Object value, int length, String builtin) {
+        if (!(value instanceof Double)) {
+            throw new RuntimeException("'" + builtin + "' index must be a number");
+        }
+        int index = ((Double) value).intValue();
+        if (index < 0) {
+            index += length;
+        }
+        return Math.max(0, Math.min(index, length));
+    }
+
+    // The unboxed elements of an all-number array; see MabelArray.numberStorage.
+    private static double[] numbersArgument(Object value, String builtin) {
+        double[] numbers = value instanceof MabelArray ? ((MabelArray) value).numberStorage() : null;
+        if (numbers == null) {
+            throw new RuntimeException("'" + builtin + "' can only be applied to arrays of numbers");
+        }
+        return numbers;
+    }
+
+    private static int sameLength(Object a, Object b, String builtin) {
+        int n = arrayArgument(a, builtin).size();
+        if (arrayArgument(b, builtin).size() != n) {
+            throw new RuntimeException("'" + builtin + "' arrays must have the same length");
+        }
+        return n;
+    }
+
+    private static List<?> arrayArgument(Object value, String builtin) {
+        if (!(value instanceof List)) {
+            throw new RuntimeException("'" + builtin + "' can only be applied to arrays");
+        }
+        return (List<?>) value;
+    }
+
+    private static int callbackArity(Object function, String builtin) {
+        if (function instanceof MabelCallable) {
+            return ((MabelCallable) function).arity();
+        } else if (function instanceof MabelBuiltin) {
+            return ((MabelBuiltin) function).arity();
+        }
+        throw new RuntimeException("'" + builtin + "' callback must be a function");
+    }
+
+    // Element callbacks take (element) or (element, index). The returned
+    // array is reused as the argument list for every call.
+    private static Object[] callbackFrame(Object function, String builtin) {
+        int arity = callbackArity(function, builtin);
+        if (arity != 1 && arity != 2) {
+            throw new RuntimeException("'" + builtin + "' callback must take 1 or 2 arguments");
+        }
+        return new Object[arity];
+    }
+
+    private static void setCallbackArguments(Object[] frame, Object element, int index) {
+        frame[0] = element;
+        if (frame.length > 1) {
+            frame[1] = number(index);
+        }
+    }
+
+    // Calls a function from a builtin. Callees copy what they need out of the
+    // argument list, so builtins can refill one list for every call.
+    private static Object invoke(Object function, List<Object> args) {
+        if (function instanceof MabelBuiltin) {
+            return ((MabelBuiltin) function).call(args);
+        }
+        return ((MabelCallable) function).call(current(), args);
+    }
+
+    private interface RangeTask {
+        void run(int chunk, int start, int end);
+    }
+
+    private static synchronized ForkJoinPool workers() {
+        if (workers == null) {
+            workers = new ForkJoinPool(PARALLELISM);
+        }
+        return workers;
+    }
+
+    // Chunks a parallel builtin splits count elements into; several per
+    // thread so uneven callbacks still balance.
+    private static int chunkCount(int count) {
+        return Math.max(1, Math.min(count, PARALLELISM * 4));
+    }
+
+    // Runs task over [0, count) in chunkCount(count) ranges on the worker
+    // pool, each in a fresh context, and waits for all of them. The first
+    // failure is rethrown on the calling thread.
+    private static void runInParallel(int count, RangeTask task) {
+        VirtualMachine parent = current();
+        int chunks = chunkCount(count);
+        // Failures are kept as thrown; the pool would hand back a copy.
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Callable<Void>> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int chunk = c;
+            int start = (int) ((long) count * c / chunks);
+            int end = (int) ((long) count * (c + 1) / chunks);
+            tasks.add(() -> {
+                if (failure.get() != null) {
+                    return null;
+                }
+                VirtualMachine context = new VirtualMachine(parent);
+                VirtualMachine previous = CURRENT.get();
+                CURRENT.set(context);
+                try {
+                    task.run(chunk, start, end);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    CURRENT.set(previous);
+                }
+                return null;
+            });
+        }
+
+        workers().invokeAll(tasks);
+
+        Throwable cause = failure.get();
+        if (cause instanceof StackOverflowError) {
+            throw new RuntimeException("Stack overflow: worker stack exhausted in parallel callback");
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause != null) {
+            throw new RuntimeException(cause);
+        }
+    }
+
+    public void run() {
+        VirtualMachine previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            interpret();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    private void interpret() {
+        while (ip < chunk.size()) {
+            byte instruction = chunk.get(ip++);
+            OpCode op = OPCODES[instruction];
+            if (profile != null) {
+                profile.record(op, ip - 1, this);
+            }
+
+            switch (op) {
+                case JUMP: {
+                    int offset = (Byte.toUnsignedInt(chunk.get(ip)) << 8) | Byte.toUnsignedInt(chunk.get(ip + 1));
+                    ip += offset + 2;
                     break;
                 }
 
-                case EQUAL: {
-                    Object b = pop();
-                    Object a = pop();
-                    push(isEqual(a, b));
+                case JUMP_IF_FALSE: {
+                    int offset = (Byte.toUnsignedInt(chunk.get(ip)) << 8) | Byte.toUnsignedInt(chunk.get(ip + 1));
+                    ip += 2;
+                    if (!isTruthy(peek()))
+                        ip += offset;
                     break;
                 }
 
-                case GREATER: {
-                    Object b = pop();
-                    Object a = pop();
-                    if (!(a instanceof Double && b instanceof Double)) {
-                        throw new RuntimeException("Operands must be numbers.");
+                case LOOP:
+                case LOOP_HOT: {
+                    int offset = (Byte.toUnsignedInt(chunk.get(ip)) << 8) | Byte.toUnsignedInt(chunk.get(ip + 1));
+                    int loopEnd = ip + 2;
+                    ip -= offset - 2;
+                    if (op == OpCode.LOOP_HOT || isHotLoop(loopEnd - 3)) {
+                        if (TRACE_OSR) {
+                            System.err.println("[osr] enter loop " + ip + ".." + loopEnd);
+                        }
+                        ip = compiledLoop(ip, loopEnd).execute(this);
+                        if (ip < 0) {
+                            return;
+                        }
                     }
-                    push((Double) a > (Double) b);
                     break;
                 }
 
-                case LESS: {
-                    Object b = pop();
-                    Object a = pop();
-                    if (!(a instanceof Double && b instanceof Double)) {
-                        throw new RuntimeException("Operands must be numbers.");
-                    }
-                    push((Double) a < (Double) b);
+                case FOR_NEXT: {
+                    int offset = (Byte.toUnsignedInt(chunk.get(ip)) << 8) | Byte.toUnsignedInt(chunk.get(ip + 1));
+                    ip += 2;
+                    if (!forNext())
+                        ip += offset;
                     break;
                 }
 
-                case ADD: {
-                    Object b = pop();
-                    Object a = pop();
-                    if (a instanceof Double && b instanceof Double) {
-                        push((Double) a + (Double) b);
-                    } else if (a instanceof String && b instanceof String) {
-                        push((String) a + (String) b);
-                    } else if (a instanceof String || b instanceof String) {
-                        push(stringify(a) + stringify(b));
-                    } else if (a instanceof List && b instanceof List) {
-                        List<Object> result = new ArrayList<>();
-                        result.addAll((List<?>) a);
-                        result.addAll((List<?>) b);
-                        push(result);
-                    } else if (a instanceof List) {
-                        List<Object> result = new ArrayList<>((List<?>) a);
-                        result.add(b);
-                        push(result);
-                    } else if (b instanceof List) {
-                        List<Object> result = new ArrayList<>();
-                        result.add(a);
-                        result.addAll((List<?>) b);
-                        push(result);
-                    } else {
-                        throw new RuntimeException("Operands must be two numbers, two strings, or arrays.");
-                    }
-                    break;
+                case RETURN:
+                    return;
+
+                default:
+                    int operand = op.operandBytes == 1 ? Byte.toUnsignedInt(chunk.get(ip++)) : 0;
+                    execute(op, operand);
+                    break;
+            }
+        }
+
+    }
+
+    private boolean isHotLoop(int loopOffset) {
+        if (OSR_THRESHOLD <= 0) {
+            return false;
+        }
+        if (backEdgeCounts == null) {
+            backEdgeCounts = new int[chunk.size()];
+        }
+        return ++backEdgeCounts[loopOffset] >= OSR_THRESHOLD;
+    }
+
+    private CompiledLoop compiledLoop(int loopStart, int loopEnd) {
+        if (compiledLoops == null) {
+            compiledLoops = new HashMap<>();
+        }
+        CompiledLoop loop = compiledLoops.get(loopStart);
+        if (loop == null) {
+            loop = CompiledLoop.compile(chunk, loopStart, loopEnd);
+            compiledLoops.put(loopStart, loop);
+        }
+        return loop;
+    }
+
+    void execute(OpCode op, int operand) {
+        switch (op) {
+            case CONSTANT:
+                Object constant = chunk.getConstant(operand);
+                // System.out.println("DEBUG: Loading constant: " + constant + " (type: " +
+                // (constant == null ? "null" : constant.getClass().getSimpleName()) + ")");
+                push(constant);
+                break;
+
+            case NIL:
+                push(null);
+                break;
+
+            case TRUE:
+                push(true);
+                break;
+
+            case FALSE:
+                push(false);
+                break;
+
+            case POP:
+                pop();
+                break;
+
+            case GET_GLOBAL: {
+                String name = (String) chunk.getConstant(operand);
+                Object value = globals.get(name);
+                if (value == null) {
+                    throw new RuntimeException("Undefined variable '" + name + "'.");
                 }
+                push(value);
+                break;
+            }
 
-                case SUBTRACT: {
-                    Object b = pop();
-                    Object a = pop();
-                    if (!(a instanceof Double && b instanceof Double)) {
-                        throw new RuntimeException("Operands must be numbers.");
-                    }
-                    push((Double) a - (Double) b);
-                    break;
+            case DEFINE_GLOBAL: {
+                String name = (String) chunk.getConstant(operand);
+                Object value = peek();
+                // System.out.println("DEBUG: Defining global '" + name + "' = " + value +
+                // " (type: " + (value == null ? "null" : value.getClass().getSimpleName()) +
+                // ")");
+                globals.put(name, value);
+                if (value instanceof SerializableClass) {
+                    // Link to an already defined superclass now so arity checks and
+                    // method lookups see the full hierarchy before the first call.
+                    ((SerializableClass) value).resolveSuperclass(globals);
+                    ((SerializableClass) value).link(chunk.getInterfaces());
                 }
+                pop();
+                break;
+            }
 
-                case MULTIPLY: {
-                    Object b = pop();
-                    Object a = pop();
-                    if (!(a instanceof Double && b instanceof Double)) {
-                        throw new RuntimeException("Operands must be numbers.");
-                    }
-                    push((Double) a * (Double) b);
-                    break;
+            case SET_GLOBAL: {
+                String name = (String) chunk.getConstant(operand);
+                if (!globals.containsKey(name)) {
+                    throw new RuntimeException("Undefined variable '" + name + "'.");
                 }
+                globals.put(name, peek());
+                break;
+            }
 
-                case DIVIDE: {
-                    Object b = pop();
-                    Object a = pop();
-                    if (!(a instanceof Double && b instanceof Double)) {
-                        throw new RuntimeException("Operands must be numbers.");
-                    }
-                    if ((Double) b == 0.0) {
-                        throw new RuntimeException("Division by zero.");
-                    }
-                    push((Double) a / (Double) b);
-                    break;
+            case EQUAL: {
+                Object b = pop();
+                Object a = pop();
+                push(isEqual(a, b));
+                break;
+            }
+
+            case GREATER: {
+                Object b = pop();
+                Object a = pop();
+                if (!(a instanceof Double && b instanceof Double)) {
+                    throw new RuntimeException("Operands must be numbers.");
                 }
+                push((Double) a > (Double) b);
+                break;
+            }
 
-                case MODULO: {
-                    Object b = pop();
-                    Object a = pop();
-                    if (!(a instanceof Double && b instanceof Double)) {
-                        throw new RuntimeException("Operands must be numbers.");
-                    }
-                    push((Double) a % (Double) b);
-                    break;
+            case LESS: {
+                Object b = pop();
+                Object a = pop();
+                if (!(a instanceof Double && b instanceof Double)) {
+                    throw new RuntimeException("Operands must be numbers.");
                 }
+                push((Double) a < (Double) b);
+                break;
+            }
 
-                case NOT:
-                    push(!isTruthy(pop()));
-                    break;
+            case ADD: {
+                Object b = pop();
+                Object a = pop();
+                push(add(a, b));
+                break;
+            }
 
-                case NEGATE: {
-                    Object operand = pop();
-                    if (!(operand instanceof Double)) {
-                        throw new RuntimeException("Operand must be a number.");
-                    }
-                    push(-(Double) operand);
-                    break;
+            case ADD_NUMBER: {
+                Object b = pop();
+                Object a = pop();
+                if (a instanceof Double && b instanceof Double) {
+                    push(number((Double) a + (Double) b));
+                } else {
+                    push(add(a, b));
                 }
+                break;
+            }
 
-                case PRINT:
-                    System.out.println(stringify(pop()));
-                    break;
+            case ADD_STRING: {
+                Object b = pop();
+                Object a = pop();
+                if (Rope.isString(a) && Rope.isString(b)) {
+                    push(Rope.concat((CharSequence) a, (CharSequence) b));
+                } else {
+                    push(add(a, b));
+                }
+                break;
+            }
 
-                case JUMP: {
-                    int offset = (Byte.toUnsignedInt(chunk.get(ip)) << 8) | Byte.toUnsignedInt(chunk.get(ip + 1));
-                    ip += offset + 2;
-                    break;
+            case SUBTRACT: {
+                Object b = pop();
+                Object a = pop();
+                if (!(a instanceof Double && b instanceof Double)) {
+                    throw new RuntimeException("Operands must be numbers.");
                 }
+                push(number((Double) a - (Double) b));
+                break;
+            }
 
-                case JUMP_IF_FALSE: {
-                    int offset = (Byte.toUnsignedInt(chunk.get(ip)) << 8) | Byte.toUnsignedInt(chunk.get(ip + 1));
-                    ip += 2;
-                    if (!isTruthy(peek()))
-                        ip += offset;
-                    break;
+            case MULTIPLY: {
+                Object b = pop();
+                Object a = pop();
+                if (!(a instanceof Double && b instanceof Double)) {
+                    throw new RuntimeException("Operands must be numbers.");
                 }
+                push(number((Double) a * (Double) b));
+                break;
+            }
 
-                case LOOP: {
-                    int offset = (Byte.toUnsignedInt(chunk.get(ip)) << 8) | Byte.toUnsignedInt(chunk.get(ip + 1));
-                    ip -= offset - 2;
-                    break;
+            case DIVIDE: {
+                Object b = pop();
+                Object a = pop();
+                if (!(a instanceof Double && b instanceof Double)) {
+                    throw new RuntimeException("Operands must be numbers.");
+                }
+                if ((Double) b == 0.0) {
+                    throw new RuntimeException("Division by zero.");
                 }
+                push(number((Double) a / (Double) b));
+                break;
+            }
 
-                case CALL: {
-                    int argCount = Byte.toUnsignedInt(chunk.get(ip++));
-                    Object callee = peek(0);
+            case MODULO: {
+                Object b = pop();
+                Object a = pop();
+                if (!(a instanceof Double && b instanceof Double)) {
+                    throw new RuntimeException("Operands must be numbers.");
+                }
+                push(number((Double) a % (Double) b));
+                break;
+            }
 
-                    if (callee instanceof MabelBuiltin) {
-                        MabelBuiltin builtin = (MabelBuiltin) callee;
-                        if (argCount != builtin.arity()) {
-                            throw new RuntimeException(
-                                    "Expected " + builtin.arity() + " arguments but got " + argCount + ".");
-                        }
-                        pop();
-                        List<Object> args = new ArrayList<>();
-                        for (int i = 0; i < argCount; i++) {
-                            args.add(0, pop());
-                        }
-                        Object result = builtin.call(args);
-                        push(result);
-                    } else if (callee instanceof MabelCallable) {
-                        MabelCallable callable = (MabelCallable) callee;
-                        if (argCount != callable.arity()) {
-                            throw new RuntimeException(
-                                    "Expected " + callable.arity() + " arguments but got " + argCount + ".");
-                        }
-                        pop();
-                        List<Object> args = new ArrayList<>();
-                        for (int i = 0; i < argCount; i++) {
-                            args.add(0, pop());
-                        }
-                        Object result = callable.call(this, args);
-                        push(result);
-                    } else if (callee instanceof SerializableClass) {
-                        SerializableClass klass = (SerializableClass) callee;
-                        if (argCount != klass.arity()) {
-                            throw new RuntimeException(
-                                    "Expected " + klass.arity() + " arguments but got " + argCount + ".");
-                        }
-                        pop();
-                        List<Object> args = new ArrayList<>();
-                        for (int i = 0; i < argCount; i++) {
-                            args.add(0, pop());
-                        }
-                        Object result = klass.call(this, args);
-                        push(result);
-                    } else if (callee instanceof SerializableInstance.BoundMethod) {
-                        SerializableInstance.BoundMethod method = (SerializableInstance.BoundMethod) callee;
-                        if (argCount != method.arity()) {
-                            throw new RuntimeException(
-                                    "Expected " + method.arity() + " arguments but got " + argCount + ".");
-                        }
-                        pop();
-                        List<Object> args = new ArrayList<>();
-                        for (int i = 0; i < argCount; i++) {
-                            args.add(0, pop());
-                        }
-                        Object result = method.call(this, args);
-                        push(result);
-                    } else {
-                        throw new RuntimeException("Can only call functions and classes. Got: " +
-                                (callee == null ? "null" : callee.getClass().getSimpleName()));
-                    }
-                    break;
+            case NOT:
+                push(!isTruthy(pop()));
+                break;
+
+            case NEGATE: {
+                Object operandValue = pop();
+                if (!(operandValue instanceof Double)) {
+                    throw new RuntimeException("Operand must be a number.");
                 }
+                push(number(-(Double) operandValue));
+                break;
+            }
 
-                case ARRAY: {
-                    int elementCount = Byte.toUnsignedInt(chunk.get(ip++));
-                    List<Object> array = new ArrayList<>();
-                    for (int i = 0; i < elementCount; i++) {
-                        array.add(0, pop());
+            case PRINT:
+                System.out.println(stringify(pop()));
+                break;
+
+            case CALL: {
+                int argCount = operand;
+                Object callee = peek(0);
+
+                if (callee instanceof MabelBuiltin) {
+                    MabelBuiltin builtin = (MabelBuiltin) callee;
+                    if (argCount < builtin.arity() || argCount > builtin.maxArity()) {
+                        String expected = builtin.arity() == builtin.maxArity() ? "" + builtin.arity()
+                                : builtin.arity() + " to " + builtin.maxArity();
+                        throw new RuntimeException(
+                                "Expected " + expected + " arguments but got " + argCount + ".");
                     }
-                    push(array);
-                    break;
+                    pop();
+                    if (argCount == 1) {
+                        push(builtin.call1(pop()));
+                        break;
+                    } else if (argCount == 2) {
+                        Object b = pop();
+                        push(builtin.call2(pop(), b));
+                        break;
+                    }
+                    List<Object> args = new ArrayList<>();
+                    for (int i = 0; i < argCount; i++) {
+                        args.add(0, pop());
+                    }
+                    Object result = builtin.call(args);
+                    push(result);
+                } else if (callee instanceof MabelCallable) {
+                    MabelCallable callable = (MabelCallable) callee;
+                    if (argCount != callable.arity()) {
+                        throw new RuntimeException(
+                                "Expected " + callable.arity() + " arguments but got " + argCount + ".");
+                    }
+                    pop();
+                    List<Object> args = new ArrayList<>();
+                    for (int i = 0; i < argCount; i++) {
+                        args.add(0, pop());
+                    }
+                    Object result = callable.call(this, args);
+                    push(result);
+                } else if (callee instanceof SerializableClass) {
+                    SerializableClass klass = (SerializableClass) callee;
+                    if (argCount != klass.arity()) {
+                        throw new RuntimeException(
+                                "Expected " + klass.arity() + " arguments but got " + argCount + ".");
+                    }
+                    pop();
+                    List<Object> args = new ArrayList<>();
+                    for (int i = 0; i < argCount; i++) {
+                        args.add(0, pop());
+                    }
+                    Object result = klass.call(this, args);
+                    push(result);
+                } else if (callee instanceof SerializableInstance.BoundMethod) {
+                    SerializableInstance.BoundMethod method = (SerializableInstance.BoundMethod) callee;
+                    if (argCount != method.arity()) {
+                        throw new RuntimeException(
+                                "Expected " + method.arity() + " arguments but got " + argCount + ".");
+                    }
+                    pop();
+                    List<Object> args = new ArrayList<>();
+                    for (int i = 0; i < argCount; i++) {
+                        args.add(0, pop());
+                    }
+                    Object result = method.call(this, args);
+                    push(result);
+                } else {
+                    throw new RuntimeException("Can only call functions and classes. Got: " +
+                            (callee == null ? "null" : callee.getClass().getSimpleName()));
                 }
+                break;
+            }
 
-                case INDEX_GET: {
-                    Object index = pop();
-                    Object object = pop();
+            case ARRAY: {
+                int elementCount = operand;
+                int base = stack.size() - elementCount;
+                MabelArray array = new MabelArray(stack.subList(base, stack.size()));
+                stack.subList(base, stack.size()).clear();
+                push(array);
+                break;
+            }
 
-                    if (object instanceof List && index instanceof Double) {
-                        List<?> list = (List<?>) object;
-                        int i = ((Double) index).intValue();
-                        if (i < 0 || i >= list.size()) {
-                            throw new RuntimeException("Array index out of bounds.");
-                        }
-                        push(list.get(i));
-                    } else if (object instanceof String && index instanceof Double) {
-                        String str = (String) object;
-                        int i = ((Double) index).intValue();
-                        if (i < 0 || i >= str.length()) {
-                            throw new RuntimeException("String index out of bounds.");
-                        }
-                        push(String.valueOf(str.charAt(i)));
-                    } else {
-                        throw new RuntimeException("Invalid index operation.");
-                    }
-                    break;
+            case MAP: {
+                int entryCount = operand;
+                MabelMap map = new MabelMap(entryCount);
+                int base = stack.size() - entryCount * 2;
+                for (int i = 0; i < entryCount; i++) {
+                    map.put(stack.get(base + i * 2), stack.get(base + i * 2 + 1));
                 }
+                stack.subList(base, stack.size()).clear();
+                push(map);
+                break;
+            }
 
-                case RETURN:
-                    return;
-
-                case GET_PROPERTY: {
-                    Object object = pop();
-                    String name = (String) chunk.getConstant(Byte.toUnsignedInt(chunk.get(ip++)));
+            case INDEX_GET: {
+                Object index = pop();
+                Object object = pop();
+                push(indexGet(object, index));
+                break;
+            }
 
-                    if (object instanceof MabelInstance) {
-                        MabelInstance instance = (MabelInstance) object;
-                        try {
-                            Object value = instance.get(new Token(TokenType.IDENTIFIER, name, null, 0));
-                            push(value);
-                        } catch (RuntimeException e) {
-                            throw new RuntimeException("Undefined property '" + name + "'.");
-                        }
-                    } else if (object instanceof SerializableInstance) {
-                        SerializableInstance instance = (SerializableInstance) object;
-                        try {
-                            Object value = instance.get(name);
-                            push(value);
-                        } catch (RuntimeException e) {
-                            throw new RuntimeException("Undefined property '" + name + "'.");
-                        }
-                    } else {
-                        throw new RuntimeException("Only instances have properties.");
+            case INDEX_GET_ARRAY: {
+                Object index = pop();
+                Object object = pop();
+                if (object instanceof List && index instanceof Double) {
+                    List<?> list = (List<?>) object;
+                    int i = ((Double) index).intValue();
+                    if (i >= 0 && i < list.size()) {
+                        push(list.get(i));
+                        break;
                     }
-                    break;
                 }
+                push(indexGet(object, index));
+                break;
+            }
 
-                case SET_PROPERTY: {
-                    Object object = pop();
-                    String name = (String) chunk.getConstant(Byte.toUnsignedInt(chunk.get(ip++)));
-                    Object value = pop();
+            case GET_PROPERTY: {
+                Object object = pop();
+                String name = (String) chunk.getConstant(operand);
 
-                    if (object instanceof MabelInstance) {
-                        MabelInstance instance = (MabelInstance) object;
-                        instance.set(new Token(TokenType.IDENTIFIER, name, null, 0), value);
+                if (object instanceof MabelInstance) {
+                    MabelInstance instance = (MabelInstance) object;
+                    try {
+                        Object value = instance.get(new Token(TokenType.IDENTIFIER, name, null, 0));
                         push(value);
-                    } else if (object instanceof SerializableInstance) {
-                        SerializableInstance instance = (SerializableInstance) object;
-                        instance.set(name, value);
+                    } catch (RuntimeException e) {
+                        throw new RuntimeException("Undefined property '" + name + "'.");
+                    }
+                } else if (object instanceof SerializableInstance) {
+                    SerializableInstance instance = (SerializableInstance) object;
+                    try {
+                        Object value = instance.get(name);
                         push(value);
-                    } else {
-                        throw new RuntimeException("Only instances have fields.");
+                    } catch (RuntimeException e) {
+                        throw new RuntimeException("Undefined property '" + name + "'.");
                     }
-                    break;
+                } else {
+                    throw new RuntimeException("Only instances have properties.");
                 }
+                break;
+            }
 
-                case CLASS: {
-                    String name = (String) chunk.getConstant(Byte.toUnsignedInt(chunk.get(ip++)));
-                    MabelClass klass = new MabelClass(name, null, new HashMap<>());
-                    push(klass);
-                    break;
+            case SET_PROPERTY: {
+                Object value = pop();
+                Object object = pop();
+                String name = (String) chunk.getConstant(operand);
+
+                if (object instanceof MabelInstance) {
+                    MabelInstance instance = (MabelInstance) object;
+                    instance.set(new Token(TokenType.IDENTIFIER, name, null, 0), value);
+                    push(value);
+                } else if (object instanceof SerializableInstance) {
+                    SerializableInstance instance = (SerializableInstance) object;
+                    instance.set(name, value);
+                    push(value);
+                } else {
+                    throw new RuntimeException("Only instances have fields.");
                 }
+                break;
+            }
 
-                case INDEX_SET: {
-                    Object value = pop();
-                    Object index = pop();
-                    Object object = pop();
+            case CLASS: {
+                String name = (String) chunk.getConstant(operand);
+                MabelClass klass = new MabelClass(name, null, new HashMap<>());
+                push(klass);
+                break;
+            }
 
-                    if (object instanceof List && index instanceof Double) {
-                        @SuppressWarnings("unchecked")
-                        List<Object> list = (List<Object>) object;
-                        int i = ((Double) index).intValue();
-                        if (i < 0 || i >= list.size()) {
-                            throw new RuntimeException("Array index out of bounds.");
-                        }
-                        list.set(i, value);
-                        push(value);
-                    } else {
-                        throw new RuntimeException("Invalid index set operation.");
-                    }
-                    break;
-                }
+            case INDEX_SET: {
+                Object value = pop();
+                Object index = pop();
+                Object object = pop();
+                indexSet(object, index, value);
+                push(value);
+                break;
+            }
 
-                default:
-                    throw new RuntimeException("Unknown opcode: " + op);
+            case ITERATE:
+                push(iterate(pop()));
+                break;
+
+            default:
+                throw new RuntimeException("Unknown opcode: " + op);
+        }
+    }
+
+    private Object add(Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return number((Double) a + (Double) b);
+        } else if (Rope.isString(a) || Rope.isString(b)) {
+            return concat(a, b);
+        } else if (a instanceof List && b instanceof List) {
+            List<Object> result = new MabelArray((List<?>) a);
+            result.addAll((List<?>) b);
+            return result;
+        } else if (a instanceof List) {
+            List<Object> result = new MabelArray((List<?>) a);
+            result.add(b);
+            return result;
+        } else if (b instanceof List) {
+            List<Object> result = new MabelArray();
+            result.add(a);
+            result.addAll((List<?>) b);
+            return result;
+        }
+        throw new RuntimeException("Operands must be two numbers, two strings, or arrays.");
+    }
+
+    // String concatenation; long results stay ropes until something reads them.
+    static CharSequence concat(Object a, Object b) {
+        CharSequence left = Rope.isString(a) ? (CharSequence) a : stringify(a);
+        CharSequence right = Rope.isString(b) ? (CharSequence) b : stringify(b);
+        return Rope.concat(left, right);
+    }
+
+    private static Object indexGet(Object object, Object index) {
+        object = Rope.flatten(object);
+        if (object instanceof List && index instanceof Double) {
+            List<?> list = (List<?>) object;
+            int i = ((Double) index).intValue();
+            if (i < 0 || i >= list.size()) {
+                throw new RuntimeException("Array index out of bounds.");
+            }
+            return list.get(i);
+        } else if (object instanceof String && index instanceof Double) {
+            String str = (String) object;
+            int i = ((Double) index).intValue();
+            if (i < 0 || i >= str.length()) {
+                throw new RuntimeException("String index out of bounds.");
             }
+            return charString(str.charAt(i));
+        } else if (object instanceof MabelMap) {
+            return ((MabelMap) object).get(index);
         }
+        throw new RuntimeException("Invalid index operation.");
+    }
 
+    private static void indexSet(Object object, Object index, Object value) {
+        if (object instanceof List && index instanceof Double) {
+            @SuppressWarnings("unchecked")
+            List<Object> list = (List<Object>) object;
+            int i = ((Double) index).intValue();
+            if (i < 0 || i >= list.size()) {
+                throw new RuntimeException("Array index out of bounds.");
+            }
+            list.set(i, value);
+            return;
+        } else if (object instanceof MabelMap) {
+            ((MabelMap) object).put(index, value);
+            return;
+        }
+        throw new RuntimeException("Invalid index set operation.");
     }
 
-    private void push(Object value) {
+    void push(Object value) {
         stack.add(value);
     }
 
-    private Object pop() {
+    Object pop() {
         if (stack.isEmpty()) {
             throw new RuntimeException("Stack underflow.");
         }
         return stack.remove(stack.size() - 1);
     }
 
-    private Object peek() {
+    Object peek() {
         return peek(0);
     }
 
-    private Object peek(int distance) {
+    Object peek(int distance) {
         return stack.get(stack.size() - 1 - distance);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -759,15 +1968,11 @@ class VirtualMachine {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null)
-            return true;
-        if (a == null)
-            return false;
-        return a.equals(b);
+    private static boolean isEqual(Object a, Object b) {
+        return Rope.equal(a, b);
     }
 
-    public String stringify(Object object) {
+    public static String stringify(Object object) {
         if (object == null)
             return "nil";
         if (object instanceof Double) {
@@ -789,22 +1994,546 @@ class VirtualMachine {
             sb.append("]");
             return sb.toString();
         }
+        if (object instanceof MabelMap) {
+            return ((MabelMap) object).stringify();
+        }
+        if (object instanceof MabelSet) {
+            return ((MabelSet) object).stringify();
+        }
         return object.toString();
     }
 
-    public void executeBlock(List<Stmt> statements, Environment environment) {
+    // Returns the ReturnValue or LoopSignal that ended the block early, if any.
+    public Object executeBlock(List<Stmt> statements, Environment environment) {
         for (Stmt statement : statements) {
             if (statement != null) {
-                executeStatement(statement, environment);
+                Object signal = executeStatement(statement, environment);
+                if (signal != null) {
+                    return signal;
+                }
+            }
+        }
+        return null;
+    }
+
+    // One activation of a function on the VM's call stack. Frames are kept
+    // once allocated and reused as the stack grows and shrinks.
+    private static final class Frame {
+        FunctionCode code;
+        Environment environment;
+        Object[] stack = new Object[8];
+        int sp;
+        int pc;
+        // Value of the last top-level statement, returned if the body ends
+        // without a return.
+        Object result;
+        // Set while an initializer runs: the call yields the instance.
+        SerializableInstance constructed;
+        // Set when the call fills a memoized function's cache.
+        MemoizedFunction memo;
+        List<Object> memoKey;
+    }
+
+    // Runs a function to completion. Calls it makes to other Mabel functions
+    // are pushed onto this VM's frame stack and run by the same loop.
+    Object callFunction(SerializableFunction function, SerializableInstance instance, List<Object> arguments) {
+        int base = frameCount;
+        Frame frame = pushFrame(function, instance);
+        int count = Math.min(function.arity(), arguments.size());
+        for (int i = 0; i < count; i++) {
+            frame.environment.setSlot(i, arguments.get(i));
+        }
+        return runFrames(base);
+    }
+
+    private Frame pushFrame(SerializableFunction function, SerializableInstance instance) {
+        if (frameCount >= MAX_CALL_DEPTH) {
+            throw new RuntimeException("Stack overflow: recursion depth exceeded " + MAX_CALL_DEPTH);
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        Frame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new Frame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        FunctionCode code = function.code();
+        frame.code = code;
+        frame.environment = function.activation(this, instance);
+        if (frame.stack.length < code.maxStack) {
+            frame.stack = new Object[code.maxStack];
+        }
+        frame.sp = 0;
+        frame.pc = 0;
+        return frame;
+    }
+
+    private void popFrame(Frame frame) {
+        Arrays.fill(frame.stack, 0, frame.code.maxStack, null);
+        frame.code = null;
+        frame.environment = null;
+        frame.result = null;
+        frame.constructed = null;
+        frame.memo = null;
+        frame.memoKey = null;
+        frameCount--;
+    }
+
+    // The frame loop: runs the frame on top of the stack, and the frames it
+    // calls, until the one at depth base returns.
+    private Object runFrames(int base) {
+        try {
+            Frame frame = frames[frameCount - 1];
+            FunctionCode code = frame.code;
+            FunctionCode.Op[] ops = code.ops;
+            Object[] stack = frame.stack;
+            Environment environment = frame.environment;
+            int pc = 0;
+            int sp = 0;
+
+            while (true) {
+                int at = pc++;
+                switch (ops[at]) {
+                    case CONST:
+                        stack[sp++] = code.refs[at];
+                        break;
+
+                    case GET_VAR: {
+                        String name = (String) code.refs[at];
+                        Object value;
+                        try {
+                            value = environment.get(name);
+                        } catch (RuntimeException e) {
+                            if (!globals.containsKey(name)) {
+                                throw e;
+                            }
+                            value = globals.get(name);
+                        }
+                        stack[sp++] = value;
+                        break;
+                    }
+
+                    case SET_VAR: {
+                        String name = (String) code.refs[at];
+                        try {
+                            environment.assign(new Token(TokenType.IDENTIFIER, name, null, 0), stack[sp - 1]);
+                        } catch (RuntimeException e) {
+                            globals.put(name, stack[sp - 1]);
+                        }
+                        break;
+                    }
+
+                    case THIS:
+                        try {
+                            stack[sp++] = environment.get("this");
+                        } catch (RuntimeException e) {
+                            throw new RuntimeException("Cannot use 'this' outside a class.");
+                        }
+                        break;
+
+                    case SUPER:
+                        stack[sp++] = superMethod(environment, (String) code.refs[at]);
+                        break;
+
+                    case GET_PROPERTY: {
+                        Object object = stack[sp - 1];
+                        if (!(object instanceof SerializableInstance)) {
+                            throw new RuntimeException("Only instances have properties.");
+                        }
+                        SerializableInstance instance = (SerializableInstance) object;
+                        int slot = cachedSlot(code, at, instance);
+                        stack[sp - 1] = slot >= 0 ? instance.getSlot(slot) : instance.get((String) code.refs[at]);
+                        break;
+                    }
+
+                    case SET_PROPERTY: {
+                        Object value = stack[--sp];
+                        Object object = stack[sp - 1];
+                        if (!(object instanceof SerializableInstance)) {
+                            throw new RuntimeException("Only instances have fields.");
+                        }
+                        SerializableInstance instance = (SerializableInstance) object;
+                        int slot = cachedSlot(code, at, instance);
+                        if (slot >= 0) {
+                            instance.setSlot(slot, value);
+                        } else {
+                            instance.set((String) code.refs[at], value);
+                        }
+                        stack[sp - 1] = value;
+                        break;
+                    }
+
+                    case INDEX: {
+                        Object index = stack[--sp];
+                        stack[sp - 1] = indexGet(stack[sp - 1], index);
+                        break;
+                    }
+
+                    case INDEX_SET: {
+                        Object value = stack[--sp];
+                        Object index = stack[--sp];
+                        indexSet(stack[sp - 1], index, value);
+                        stack[sp - 1] = value;
+                        break;
+                    }
+
+                    case ARRAY: {
+                        int count = code.operands[at];
+                        MabelArray array = new MabelArray();
+                        sp -= count;
+                        for (int i = 0; i < count; i++) {
+                            array.add(stack[sp + i]);
+                        }
+                        stack[sp++] = array;
+                        break;
+                    }
+
+                    case MAP: {
+                        int count = code.operands[at];
+                        MabelMap map = new MabelMap(count);
+                        sp -= 2 * count;
+                        for (int i = 0; i < count; i++) {
+                            map.put(stack[sp + 2 * i], stack[sp + 2 * i + 1]);
+                        }
+                        stack[sp++] = map;
+                        break;
+                    }
+
+                    case CALL: {
+                        int argCount = code.operands[at];
+                        int calleeAt = sp - argCount - 1;
+                        Object callee = stack[calleeAt];
+
+                        SerializableFunction function = null;
+                        SerializableInstance instance = null;
+                        SerializableInstance constructed = null;
+                        MemoizedFunction memo = null;
+                        List<Object> memoKey = null;
+
+                        if (callee instanceof SerializableFunction) {
+                            function = (SerializableFunction) callee;
+                        } else if (callee instanceof SerializableInstance.BoundMethod) {
+                            SerializableInstance.BoundMethod method = (SerializableInstance.BoundMethod) callee;
+                            function = method.getMethod();
+                            instance = method.getInstance();
+                        } else if (callee instanceof SerializableClass) {
+                            SerializableClass klass = (SerializableClass) callee;
+                            instance = klass.instantiate(this);
+                            function = klass.findInitializer();
+                            if (function == null) {
+                                if (argCount != 0) {
+                                    throw new RuntimeException("Expected 0 arguments but got " + argCount + ".");
+                                }
+                                klass.initialized(instance);
+                                sp = calleeAt;
+                                stack[sp++] = instance;
+                                break;
+                            }
+                            constructed = instance;
+                        } else if (callee instanceof MemoizedFunction
+                                && ((MemoizedFunction) callee).getFunction() instanceof SerializableFunction) {
+                            memo = (MemoizedFunction) callee;
+                            memoKey = MemoizedFunction.key(Arrays.asList(stack).subList(calleeAt + 1, sp));
+                            Object cached = memo.lookup(memoKey);
+                            if (cached != MemoizedFunction.MISS) {
+                                Arrays.fill(stack, calleeAt, sp, null);
+                                sp = calleeAt;
+                                stack[sp++] = cached;
+                                break;
+                            }
+                            function = (SerializableFunction) memo.getFunction();
+                        }
+
+                        if (function == null) {
+                            List<Object> args = new ArrayList<>(argCount);
+                            for (int i = calleeAt + 1; i < sp; i++) {
+                                args.add(stack[i]);
+                            }
+                            Arrays.fill(stack, calleeAt, sp, null);
+                            sp = calleeAt;
+                            if (callee instanceof MabelCallable) {
+                                stack[sp++] = ((MabelCallable) callee).call(this, args);
+                            } else if (callee instanceof MabelBuiltin) {
+                                stack[sp++] = ((MabelBuiltin) callee).call(args);
+                            } else {
+                                throw new RuntimeException("Can only call functions and methods.");
+                            }
+                            break;
+                        }
+
+                        frame.pc = pc;
+                        frame.sp = calleeAt;
+                        Frame caller = frame;
+                        frame = pushFrame(function, instance);
+                        frame.constructed = constructed;
+                        frame.memo = memo;
+                        frame.memoKey = memoKey;
+                        int count = Math.min(function.arity(), argCount);
+                        for (int i = 0; i < count; i++) {
+                            frame.environment.setSlot(i, stack[calleeAt + 1 + i]);
+                        }
+                        Arrays.fill(caller.stack, calleeAt, sp, null);
+
+                        code = frame.code;
+                        ops = code.ops;
+                        stack = frame.stack;
+                        environment = frame.environment;
+                        pc = 0;
+                        sp = 0;
+                        break;
+                    }
+
+                    case NEGATE: {
+                        Object operand = stack[sp - 1];
+                        if (!(operand instanceof Double)) {
+                            throw new RuntimeException("Operand must be a number.");
+                        }
+                        stack[sp - 1] = number(-(Double) operand);
+                        break;
+                    }
+
+                    case NOT:
+                        stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                        break;
+
+                    case ADD: {
+                        Object right = stack[--sp];
+                        stack[sp - 1] = bodyAdd(stack[sp - 1], right);
+                        break;
+                    }
+
+                    case SUBTRACT:
+                    case MULTIPLY:
+                    case DIVIDE:
+                    case MODULO:
+                    case LESS_EQUAL:
+                    case GREATER_EQUAL:
+                    case LESS:
+                    case GREATER: {
+                        Object right = stack[--sp];
+                        stack[sp - 1] = bodyArithmetic(ops[at], stack[sp - 1], right);
+                        break;
+                    }
+
+                    case EQUAL: {
+                        Object right = stack[--sp];
+                        stack[sp - 1] = isEqual(stack[sp - 1], right);
+                        break;
+                    }
+
+                    case NOT_EQUAL: {
+                        Object right = stack[--sp];
+                        stack[sp - 1] = !isEqual(stack[sp - 1], right);
+                        break;
+                    }
+
+                    case AND: {
+                        Object right = stack[--sp];
+                        stack[sp - 1] = isTruthy(stack[sp - 1]) && isTruthy(right);
+                        break;
+                    }
+
+                    case OR: {
+                        Object right = stack[--sp];
+                        stack[sp - 1] = isTruthy(stack[sp - 1]) || isTruthy(right);
+                        break;
+                    }
+
+                    case POP:
+                        stack[--sp] = null;
+                        break;
+
+                    case PRINT:
+                        System.out.println(stringify(stack[--sp]));
+                        stack[sp] = null;
+                        break;
+
+                    case DEFINE:
+                        environment.define((String) code.refs[at], stack[--sp]);
+                        stack[sp] = null;
+                        break;
+
+                    case SET_RESULT:
+                        frame.result = stack[--sp];
+                        stack[sp] = null;
+                        break;
+
+                    case CLEAR_RESULT:
+                        frame.result = null;
+                        break;
+
+                    case JUMP:
+                        pc = code.operands[at];
+                        break;
+
+                    case JUMP_IF_FALSE:
+                        if (!isTruthy(stack[--sp])) {
+                            pc = code.operands[at];
+                        }
+                        stack[sp] = null;
+                        break;
+
+                    case ITERATE:
+                        stack[sp - 1] = iterate(stack[sp - 1]);
+                        break;
+
+                    case FOR_NEXT: {
+                        Cursor cursor = (Cursor) stack[sp - 1];
+                        if (cursor.hasNext()) {
+                            environment.define((String) code.refs[at], cursor.next());
+                        } else {
+                            pc = code.operands[at];
+                        }
+                        break;
+                    }
+
+                    case FAIL:
+                        throw new RuntimeException((String) code.refs[at]);
+
+                    case RETURN:
+                    case RETURN_RESULT: {
+                        Object value = ops[at] == FunctionCode.Op.RETURN ? stack[--sp] : frame.result;
+                        if (frame.constructed != null) {
+                            value = frame.constructed;
+                            frame.constructed.getKlass().initialized(frame.constructed);
+                        } else if (frame.memo != null) {
+                            frame.memo.store(frame.memoKey, value);
+                        }
+                        popFrame(frame);
+                        if (frameCount == base) {
+                            return value;
+                        }
+
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        ops = code.ops;
+                        stack = frame.stack;
+                        environment = frame.environment;
+                        pc = frame.pc;
+                        sp = frame.sp;
+                        stack[sp++] = value;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            while (frameCount > base) {
+                popFrame(frames[frameCount - 1]);
             }
         }
     }
 
+    // The slot holding the instruction's field in this instance, or -1 for
+    // methods and fields it does not have yet. Record views keep the empty
+    // shape, which holds no fields, so they always take the slow path.
+    private static int cachedSlot(FunctionCode code, int at, SerializableInstance instance) {
+        Shape shape = instance.getShape();
+        FunctionCode.PropertyCache cache = code.caches[at];
+        if (cache != null && cache.shape == shape) {
+            return cache.slot;
+        }
+        int slot = shape.indexOf((String) code.refs[at]);
+        if (slot >= 0) {
+            code.caches[at] = new FunctionCode.PropertyCache(shape, slot);
+        }
+        return slot;
+    }
+
+    // A method of the superclass bound to the current 'this'.
+    private static SerializableInstance.BoundMethod superMethod(Environment environment, String name) {
+        Object thisObj;
+        try {
+            thisObj = environment.get("this");
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Cannot use 'super' outside a class method.");
+        }
+        if (!(thisObj instanceof SerializableInstance)) {
+            throw new RuntimeException("'super' can only be used in a class method.");
+        }
+        SerializableInstance instance = (SerializableInstance) thisObj;
+
+        if (name == null) {
+            throw new RuntimeException("Super access requires a method name.");
+        }
+        SerializableFunction method = instance.getSuperMethod(name);
+        if (method == null) {
+            throw new RuntimeException("Undefined super method '" + name + "'.");
+        }
+        return new SerializableInstance.BoundMethod(instance, method);
+    }
+
+    // Function bodies yield nil for operand types top-level code rejects.
+    private static Object bodyAdd(Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return number((Double) left + (Double) right);
+        } else if (Rope.isString(left) || Rope.isString(right)) {
+            return concat(left, right);
+        } else if (left instanceof List && right instanceof List) {
+            List<Object> result = new MabelArray((List<?>) left);
+            result.addAll((List<?>) right);
+            return result;
+        } else if (left instanceof List) {
+            List<Object> result = new MabelArray((List<?>) left);
+            result.add(right);
+            return result;
+        } else if (right instanceof List) {
+            List<Object> result = new MabelArray();
+            result.add(left);
+            result.addAll((List<?>) right);
+            return result;
+        }
+        return null;
+    }
+
+    private static Object bodyArithmetic(FunctionCode.Op op, Object left, Object right) {
+        if (!(left instanceof Double && right instanceof Double)) {
+            return null;
+        }
+        double a = (Double) left;
+        double b = (Double) right;
+        switch (op) {
+            case SUBTRACT:
+                return number(a - b);
+            case MULTIPLY:
+                return number(a * b);
+            case DIVIDE:
+                return number(a / b);
+            case MODULO:
+                return number(a % b);
+            case LESS_EQUAL:
+                return a <= b;
+            case GREATER_EQUAL:
+                return a >= b;
+            case LESS:
+                return a < b;
+            default:
+                return a > b;
+        }
+    }
+
+
+    void setProfile(Profile profile) {
+        this.profile = profile;
+        profile.setCodeSize(chunk.size());
+    }
+
+    Profile getProfile() {
+        return profile;
+    }
+
     public Map<String, Object> getGlobals() {
         return globals;
     }
 
-    private void executeStatement(Stmt statement, Environment environment) {
+    // The root scope every function activation links to, backed by the globals map.
+    Environment getGlobalScope() {
+        return globalScope;
+    }
+
+    private Object executeStatement(Stmt statement, Environment environment) {
         try {
             // System.out.println("DEBUG: Executing statement: " +
             // statement.getClass().getSimpleName());
@@ -828,12 +2557,36 @@ class VirtualMachine {
                 if (returnStmt.value != null) {
                     value = evaluateExpression(returnStmt.value, environment);
                 }
-                throw new ReturnValue(value);
+                return new ReturnValue(value);
+            } else if (statement instanceof Stmt.Break) {
+                return LoopSignal.BREAK;
+            } else if (statement instanceof Stmt.Continue) {
+                return LoopSignal.CONTINUE;
+            } else if (statement instanceof Stmt.Block) {
+                return executeBlock(((Stmt.Block) statement).statements, environment);
+            } else if (statement instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) statement;
+                if (isTruthy(evaluateExpression(ifStmt.condition, environment))) {
+                    return executeStatement(ifStmt.thenBranch, environment);
+                } else if (ifStmt.elseBranch != null) {
+                    return executeStatement(ifStmt.elseBranch, environment);
+                }
+            } else if (statement instanceof Stmt.While) {
+                Stmt.While whileStmt = (Stmt.While) statement;
+                while (isTruthy(evaluateExpression(whileStmt.condition, environment))) {
+                    Object signal = executeStatement(whileStmt.body, environment);
+                    if (signal == LoopSignal.BREAK) {
+                        break;
+                    } else if (signal instanceof ReturnValue) {
+                        return signal;
+                    }
+                }
             }
         } catch (RuntimeException e) {
             System.err.println("Error executing statement: " + e.getMessage());
             e.printStackTrace();
         }
+        return null;
     }
 
     private Object evaluateExpression(Expr expression, Environment environment) {
@@ -851,8 +2604,8 @@ class VirtualMachine {
                 case PLUS:
                     if (left instanceof Double && right instanceof Double) {
                         return (Double) left + (Double) right;
-                    } else if (left instanceof String || right instanceof String) {
-                        return stringify(left) + stringify(right);
+                    } else if (Rope.isString(left) || Rope.isString(right)) {
+                        return concat(left, right);
                     }
                     break;
                 case MINUS:
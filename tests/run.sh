@@ -0,0 +1,35 @@
+#!/bin/sh
+# Runs every tests/*.mbl script and compares its output with the matching
+# .expected file. A first line of the form "// java: <flags>" passes extra
+# JVM flags for that script. Usage: tests/run.sh [name ...]
+cd "$(dirname "$0")/.." || exit 1
+
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -d "$out/classes" src/*.java || exit 1
+
+if [ $# -eq 0 ]; then
+    set -- tests/*.mbl
+else
+    names=""
+    for name in "$@"; do
+        names="$names tests/$name.mbl"
+    done
+    set -- $names
+fi
+
+failed=0
+for script in "$@"; do
+    name=$(basename "$script" .mbl)
+    flags=$(sed -n '1s|^// java: ||p' "$script")
+    java $flags -cp "$out/classes" MabelCompiler "$script" 2>&1 | grep -v '^	at ' > "$out/$name.out"
+    if diff -u "tests/$name.expected" "$out/$name.out" > "$out/$name.diff"; then
+        echo "PASS $name"
+    else
+        echo "FAIL $name"
+        cat "$out/$name.diff"
+        failed=$((failed + 1))
+    fi
+done
+
+[ "$failed" -eq 0 ]